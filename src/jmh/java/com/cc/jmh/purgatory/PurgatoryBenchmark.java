@@ -0,0 +1,189 @@
+package com.cc.jmh.purgatory;
+
+import com.cc.common.utils.timer.SystemTimer;
+import com.cc.delay.DelayedOperation;
+import com.cc.delay.DelayedOperationPurgatory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	DelayedOperationPurgatory 在多生产者下的竞争基准测试
+ *
+ * 单个线程数:
+ *   java -jar target/benchmarks.jar PurgatoryBenchmark -t 16
+ * 按 1,2,4,...,64 线程依次运行 (其余参数与 JMH 命令行一致):
+ *   java -cp target/benchmarks.jar com.cc.jmh.purgatory.PurgatoryBenchmark PurgatoryBenchmark
+ *
+ * keys 为 key 的个数: 1 即所有线程争用同一个热点 key; shards 为 purgatory 的分片数。
+ */
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PurgatoryBenchmark {
+
+	private final static int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+	@State(Scope.Benchmark)
+	public static class PurgatoryState {
+
+		@Param({"1", "1000", "1000000"})
+		public int keys;
+
+		@Param({"1", "64"})
+		public int shards;
+
+		DelayedOperationPurgatory<BenchOperation> purgatory;
+		List<Object>[] watchKeys;
+
+		@Setup(Level.Trial)
+		@SuppressWarnings("unchecked")
+		public void setUp() {
+			purgatory = new DelayedOperationPurgatory<>("benchmark", new SystemTimer("benchmark"),
+					DelayedOperationPurgatory.purgeInterval_default, true, true, shards);
+			watchKeys = new List[keys];
+			for (int i = 0; i < keys; i++)
+				watchKeys[i] = Collections.singletonList("key-" + i);
+			populate();
+		}
+
+		protected void populate() {
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			purgatory.shutdown();
+		}
+	}
+
+	// 每个 key 上常驻一个永远不会完成的 operation, 供 checkAndComplete / watched 使用
+	@State(Scope.Benchmark)
+	public static class WatchedState extends PurgatoryState {
+
+		@Override
+		protected void populate() {
+			for (List<Object> key : watchKeys)
+				purgatory.tryCompleteElseWatch(new BenchOperation(300_000L, 0), key);
+		}
+	}
+
+	// 热点 key 上的 operation, 其 tryComplete 持锁时会消耗一定的 CPU, 对应 testTryCompleteLockContention 的场景
+	@State(Scope.Benchmark)
+	public static class ContendedState extends PurgatoryState {
+
+		@Param({"0", "100"})
+		public int tryCompleteTokens;
+
+		@Override
+		protected void populate() {
+			purgatory.tryCompleteElseWatch(new BenchOperation(300_000L, tryCompleteTokens), watchKeys[0]);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+
+		List<Object> nextKey(PurgatoryState state) {
+			return state.watchKeys[random.nextInt(state.keys)];
+		}
+	}
+
+	/**
+	 * 注册一个不会被满足的 operation, 由 reaper 在 20~100ms 后使其过期
+	 */
+	@Benchmark
+	public boolean tryCompleteElseWatch(PurgatoryState state, ThreadState thread) {
+		BenchOperation operation = new BenchOperation(thread.random.nextLong(20L, 100L), 0);
+		return state.purgatory.tryCompleteElseWatch(operation, thread.nextKey(state));
+	}
+
+	/**
+	 * 注册后立即满足: watch + checkAndComplete 的完整生命周期
+	 */
+	@Benchmark
+	public int watchThenComplete(PurgatoryState state, ThreadState thread) {
+		List<Object> key = thread.nextKey(state);
+		BenchOperation operation = new BenchOperation(30_000L, 0);
+		state.purgatory.tryCompleteElseWatch(operation, key);
+		operation.completable = true;
+		return state.purgatory.checkAndComplete(key.get(0));
+	}
+
+	@Benchmark
+	public int checkAndComplete(WatchedState state, ThreadState thread) {
+		return state.purgatory.checkAndComplete(thread.nextKey(state).get(0));
+	}
+
+	/**
+	 * 注册后按 key 取消: cancelForKey 从 ConcurrentHashMap 中删除该 key 的 Watchers, 再用 getAndSet 把 size 置为 -1 封存 (此后 watch 在 size 上的 CAS 失败), 不需要全局锁
+	 */
+	@Benchmark
+	public List<BenchOperation> cancelForKey(PurgatoryState state, ThreadState thread) {
+		List<Object> key = thread.nextKey(state);
+		state.purgatory.tryCompleteElseWatch(new BenchOperation(30_000L, 0), key);
+		return state.purgatory.cancelForKey(key.get(0));
+	}
+
+	@Benchmark
+	public int watched(WatchedState state) {
+		return state.purgatory.watched();
+	}
+
+	/**
+	 * 所有线程对同一个 key 执行 checkAndComplete, 竞争同一个 operation 的 maybeTryComplete
+	 */
+	@Benchmark
+	public int maybeTryCompleteContended(ContendedState state) {
+		return state.purgatory.checkAndComplete(state.watchKeys[0].get(0));
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		for (int threads : THREADS) {
+			new Runner(new OptionsBuilder().parent(options).threads(threads).build()).run();
+		}
+	}
+
+	static final class BenchOperation extends DelayedOperation {
+
+		volatile boolean completable = false;
+		private final int tryCompleteTokens;
+
+		BenchOperation(long delayMs, int tryCompleteTokens) {
+			super(delayMs);
+			this.tryCompleteTokens = tryCompleteTokens;
+		}
+
+		@Override
+		public void onExpiration() {
+		}
+
+		@Override
+		public void onComplete() {
+		}
+
+		@Override
+		public boolean tryComplete() {
+			if (tryCompleteTokens > 0)
+				Blackhole.consumeCPU(tryCompleteTokens);
+			if (completable)
+				return forceComplete();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.cc.jmh.timer;
+
+import java.util.SplittableRandom;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	基准测试使用的延迟分布 (毫秒)
+ */
+public enum DelayDistribution {
+
+	// 所有任务同一个超时时间, 类似 fetch 请求的固定超时
+	FIXED {
+		@Override
+		public long next(SplittableRandom random) {
+			return 30_000L;
+		}
+	},
+	// [10ms, 60s) 均匀分布
+	UNIFORM {
+		@Override
+		public long next(SplittableRandom random) {
+			return random.nextLong(10L, 60_000L);
+		}
+	},
+	// 90% 为 [10ms, 500ms) 的短超时, 10% 为 [30s, 5min) 的长超时 (session 类)
+	BIMODAL {
+		@Override
+		public long next(SplittableRandom random) {
+			if (random.nextInt(10) < 9)
+				return random.nextLong(10L, 500L);
+			return random.nextLong(30_000L, 300_000L);
+		}
+	};
+
+	public abstract long next(SplittableRandom random);
+}
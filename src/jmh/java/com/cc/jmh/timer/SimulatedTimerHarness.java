@@ -0,0 +1,165 @@
+package com.cc.jmh.timer;
+
+import com.cc.common.metrics.Histogram;
+import com.cc.common.utils.MockTime;
+import com.cc.common.utils.timer.GeometryTuner;
+import com.cc.common.utils.timer.SystemTimer;
+import com.cc.common.utils.timer.TimerMetrics;
+import com.cc.common.utils.timer.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	以虚拟时钟驱动 SystemTimer 的吞吐与精度测试
+ *
+ * 时间轮常驻 timers 个任务, 每个任务到期后立即以新的延迟重新加入, 虚拟时间每次前进 stepMs,
+ * 几个小时的虚拟时间可以在数秒到数十秒的真实时间内跑完。到期任务在推动时钟的线程上直接执行, 结果可复现。
+ *
+ * 运行方式:
+ *   mvn -P jmh clean package
+ *   java -cp target/benchmarks.jar com.cc.jmh.timer.SimulatedTimerHarness [timers] [hours] [stepMs] [FIXED|UNIFORM|BIMODAL] [DELAY_QUEUE|WHEEL_CURSOR] [tuned]
+ *
+ * lateness 为任务实际执行的虚拟时刻与其到期时刻之差, 理想情况下不超过 stepMs;
+ * 时间轮在 bucket 的起始时刻触发整个 bucket, 因此任务最多会提前 tickMs 执行, 单独统计为 early。
+ * tuned 为 true 时由 GeometryTuner 按延迟分布调整 wheelSize (tick 固定), 对比 cascaded 即可看出 cascade 的减少。
+ */
+public class SimulatedTimerHarness {
+
+	private final static long TICK_MS = 10L;
+	private final static int WHEEL_SIZE = 20;
+
+	public static void main(String[] args) {
+		int timers = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		long virtualMs = TimeUnit.HOURS.toMillis(args.length > 1 ? Long.parseLong(args[1]) : 1L);
+		long stepMs = args.length > 2 ? Long.parseLong(args[2]) : TICK_MS;
+		DelayDistribution distribution = args.length > 3 ? DelayDistribution.valueOf(args[3]) : DelayDistribution.UNIFORM;
+		SystemTimer.Scheduling scheduling = args.length > 4 ? SystemTimer.Scheduling.valueOf(args[4])
+				: SystemTimer.Scheduling.DELAY_QUEUE;
+		boolean tuned = args.length > 5 && Boolean.parseBoolean(args[5]);
+
+		MockTime time = new MockTime(0L, 0L, 0L);
+		List<SimulatedTask> fired = new ArrayList<>();
+		List<SimulatedTask> due = new ArrayList<>();
+		Histogram latenessMs = new Histogram();
+		Histogram earlyMs = new Histogram();
+		SystemTimer timer = new SystemTimer("simulated", TICK_MS, WHEEL_SIZE, time.hiResClockMs(),
+				TimeUnit.MILLISECONDS, new CallerRunsExecutor(), time, scheduling, tuned ? new GeometryTuner(TICK_MS) : null);
+		SplittableRandom random = new SplittableRandom(17);
+
+		long startNs = System.nanoTime();
+		for (int i = 0; i < timers; i++) {
+			SimulatedTask task = new SimulatedTask(time, fired, latenessMs, earlyMs);
+			task.schedule(distribution.next(random));
+			timer.add(task);
+		}
+		long adds = timers;
+		while (time.hiResClockMs() < virtualMs) {
+			time.sleep(stepMs);
+			timer.advanceClock(0L);
+			// 在 advanceClock 之外重新加入, 避免在 flush bucket 的过程中插入时间轮;
+			// add 时已经过期的任务会立即执行并再次进入 fired, 所以先取出本轮的任务
+			due.addAll(fired);
+			fired.clear();
+			for (SimulatedTask task : due) {
+				task.schedule(distribution.next(random));
+				timer.add(task);
+			}
+			adds += due.size();
+			due.clear();
+		}
+		long elapsedNs = System.nanoTime() - startNs;
+		timer.shutdown();
+
+		double elapsedSec = elapsedNs / 1e9;
+		long expirations = latenessMs.count() + earlyMs.count();
+		TimerMetrics metrics = timer.metrics();
+		System.out.printf("timers=%d distribution=%s scheduling=%s virtual=%ds step=%dms tick=%d wheelSize=%d%n",
+				timers, distribution, scheduling, TimeUnit.MILLISECONDS.toSeconds(virtualMs), stepMs,
+				metrics.getTick(), metrics.getWheelSize());
+		System.out.printf("real=%.2fs speedup=%.0fx%n", elapsedSec, virtualMs / 1000.0 / elapsedSec);
+		System.out.printf("adds=%d expirations=%d throughput=%.0f ops/s%n",
+				adds, expirations, (adds + expirations) / elapsedSec);
+		System.out.printf("lateness ms: count=%d p50=%d p99=%d p999=%d max=%d%n", latenessMs.count(),
+				latenessMs.percentile(0.5), latenessMs.percentile(0.99), latenessMs.percentile(0.999), latenessMs.max());
+		System.out.printf("early ms: count=%d p50=%d p99=%d max=%d%n", earlyMs.count(),
+				earlyMs.percentile(0.5), earlyMs.percentile(0.99), earlyMs.max());
+		System.out.printf("writeLock hold us: p99=%d max=%d levels=%d cascaded=%s%n",
+				metrics.getWriteLockHoldP99Us(), metrics.getWriteLockHoldMaxUs(), metrics.getLevels(),
+				Arrays.toString(metrics.getCascadedEntries()));
+	}
+
+	static final class SimulatedTask extends TimerTask {
+
+		private final MockTime time;
+		private final List<SimulatedTask> fired;
+		private final Histogram latenessMs;
+		private final Histogram earlyMs;
+		private long deadlineMs;
+
+		SimulatedTask(MockTime time, List<SimulatedTask> fired, Histogram latenessMs, Histogram earlyMs) {
+			this.time = time;
+			this.fired = fired;
+			this.latenessMs = latenessMs;
+			this.earlyMs = earlyMs;
+		}
+
+		void schedule(long delayMs) {
+			this.delayMs = delayMs;
+			this.deadlineMs = time.hiResClockMs() + delayMs;
+		}
+
+		@Override
+		public void run() {
+			long lateMs = time.hiResClockMs() - deadlineMs;
+			if (lateMs >= 0)
+				latenessMs.record(lateMs);
+			else
+				earlyMs.record(-lateMs);
+			fired.add(this);
+		}
+	}
+
+	// 在提交线程上直接执行, 虚拟时间下的到期顺序与执行顺序一致
+	static final class CallerRunsExecutor extends AbstractExecutorService {
+
+		private volatile boolean shutdown = false;
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return new ArrayList<>();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return shutdown;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.cc.jmh.timer;
+
+import com.cc.common.utils.CachedTime;
+import com.cc.common.utils.ShutdownableThread;
+import com.cc.common.utils.Time;
+import com.cc.common.utils.timer.SystemTimer;
+import com.cc.common.utils.timer.TimerTask;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	SystemTimer / TimingWheel 的 add、cancel、advanceClock 基准测试
+ *
+ * 运行方式:
+ *   mvn -P jmh clean package
+ *   java -jar target/benchmarks.jar TimerBenchmark -prof gc
+ *
+ * Throughput 给出吞吐, SampleTime 给出延迟分布, -prof gc 的 gc.alloc.rate.norm 即每次操作的分配字节数。
+ * outstanding 为时间轮中常驻的任务数, 10M 档需要较大的堆 (见 @Fork 参数)。
+ */
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TimerBenchmark {
+
+	private final static long EXPIRY_WINDOW_MS = 100L;
+	private final static int BATCH_SIZE = 100_000;
+
+	@State(Scope.Benchmark)
+	public static class TimerState {
+
+		@Param({"10000", "1000000", "10000000"})
+		public int outstanding;
+
+		@Param({"FIXED", "UNIFORM", "BIMODAL"})
+		public DelayDistribution distribution;
+
+		// SYSTEM 每次读取都调用 System.nanoTime, CACHED 读取后台线程每 1ms 刷新的值
+		@Param({"SYSTEM", "CACHED"})
+		public String clock;
+
+		@Param({"DELAY_QUEUE", "WHEEL_CURSOR"})
+		public SystemTimer.Scheduling scheduling;
+
+		SplittableRandom random = new SplittableRandom(17);
+		SystemTimer timer;
+		CachedTime cachedTime;
+		BenchTask[] tasks;
+		int cursor = 0;
+		private ShutdownableThread reaper;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Time time = Time.SYSTEM;
+			if ("CACHED".equals(clock))
+				time = cachedTime = new CachedTime(1L);
+			timer = new SystemTimer("benchmark", 10L, 20, time.hiResClockMs(),
+					Executors.newSingleThreadExecutor(), time, scheduling);
+			tasks = new BenchTask[outstanding];
+			for (int i = 0; i < outstanding; i++) {
+				tasks[i] = new BenchTask(distribution.next(random));
+				timer.add(tasks[i]);
+			}
+			if (withReaper()) {
+				reaper = new ShutdownableThread("benchmark-reaper", false) {
+					@Override
+					public void doWork() {
+						timer.advanceClock(200L);
+					}
+				};
+				reaper.start();
+			}
+		}
+
+		// add / cancel 的测试需要后台推动时间轮, 否则 currentTime 停滞, 任务会不断落入更高层的时间轮
+		protected boolean withReaper() {
+			return true;
+		}
+
+		BenchTask next() {
+			BenchTask task = tasks[cursor];
+			if (++cursor == tasks.length)
+				cursor = 0;
+			return task;
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			if (reaper != null)
+				reaper.shutdown();
+			timer.shutdown();
+			if (cachedTime != null)
+				cachedTime.close();
+		}
+	}
+
+	// 每轮迭代前向时间轮追加一批任务, 供 cancel 测试使用
+	@State(Scope.Benchmark)
+	public static class CancelState extends TimerState {
+
+		BenchTask[] batch = new BenchTask[BATCH_SIZE];
+
+		@Setup(Level.Iteration)
+		public void addBatch() {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				batch[i] = new BenchTask(distribution.next(random));
+				timer.add(batch[i]);
+			}
+		}
+	}
+
+	// 每轮迭代前追加一批即将过期的任务, 按 cancelRatio 取消其中一部分, 再等待它们全部到期
+	@State(Scope.Benchmark)
+	public static class ExpiryState extends TimerState {
+
+		@Param({"0.0", "0.5", "0.9"})
+		public double cancelRatio;
+
+		@Override
+		protected boolean withReaper() {
+			return false;
+		}
+
+		@Setup(Level.Iteration)
+		public void addExpiringBatch() throws InterruptedException {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				BenchTask task = new BenchTask(random.nextLong(20L, EXPIRY_WINDOW_MS));
+				timer.add(task);
+				if (random.nextDouble() < cancelRatio)
+					task.cancel();
+			}
+			Thread.sleep(EXPIRY_WINDOW_MS * 2);
+		}
+	}
+
+	/**
+	 * 重新调度常驻任务: 旧的 TimerTaskEntry 被摘除, 新的 entry 插入时间轮, 常驻任务数保持不变
+	 */
+	@Benchmark
+	@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void add(TimerState state) {
+		BenchTask task = state.next();
+		task.reschedule(state.distribution.next(state.random));
+		state.timer.add(task);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OperationsPerInvocation(BATCH_SIZE)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Measurement(iterations = 20)
+	@Warmup(iterations = 10)
+	public void cancel(CancelState state) {
+		BenchTask[] batch = state.batch;
+		for (int i = 0; i < batch.length; i++)
+			batch[i].cancel();
+	}
+
+	/**
+	 * 一次 advanceClock 取出所有到期的 bucket: 包括高层时间轮的降层 (cascade) 和到期任务的提交
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OperationsPerInvocation(BATCH_SIZE)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Measurement(iterations = 20)
+	@Warmup(iterations = 10)
+	public boolean advanceClock(ExpiryState state) {
+		return state.timer.advanceClock(0L);
+	}
+
+	static final class BenchTask extends TimerTask {
+
+		BenchTask(long delayMs) {
+			this.delayMs = delayMs;
+		}
+
+		void reschedule(long delayMs) {
+			this.delayMs = delayMs;
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.cc.common.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	MBean 的注册与注销
+ *
+ * 注册失败 (例如同名的实例已经存在) 只记录日志, 不影响组件本身的创建。
+ */
+public final class JmxRegistry {
+
+	private final static Logger log = LoggerFactory.getLogger(JmxRegistry.class);
+
+	private JmxRegistry() {
+	}
+
+	public static ObjectName objectName(String domain, String type, String name) {
+		try {
+			return new ObjectName(domain + ":type=" + type + ",name=" + ObjectName.quote(name));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid MBean name " + name, e);
+		}
+	}
+
+	// 注册成功返回 true
+	public static boolean register(ObjectName objectName, Object mbean) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(mbean, objectName);
+			return true;
+		} catch (Exception e) {
+			log.warn("Failed to register MBean {}", objectName, e);
+			return false;
+		}
+	}
+
+	public static void unregister(ObjectName objectName) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		} catch (Exception e) {
+			log.warn("Failed to unregister MBean {}", objectName, e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.cc.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	计数 + 速率
+ *
+ * mark() 只是一次 LongAdder.add, 多线程下没有共享写冲突;
+ * 速率在读取时按 5 秒一个区间惰性计算 (一分钟指数滑动平均), 不需要后台线程。
+ */
+public class Meter {
+
+	private final static long TICK_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+	// 一分钟窗口下每 5 秒一次衰减的系数
+	private final static double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+	private final LongAdder count = new LongAdder();
+	private final long startNs;
+
+	// 以下字段只在 synchronized 的读取方法中访问
+	private long lastTickNs;
+	private long lastTickCount = 0;
+	private double rate = 0.0;
+	private boolean initialized = false;
+
+	public Meter() {
+		this.startNs = System.nanoTime();
+		this.lastTickNs = startNs;
+	}
+
+	public void mark() {
+		count.increment();
+	}
+
+	public void mark(long n) {
+		count.add(n);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	// 自创建以来的平均每秒次数
+	public double meanRate() {
+		long elapsedNs = System.nanoTime() - startNs;
+		return elapsedNs <= 0 ? 0.0 : count.sum() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNs;
+	}
+
+	// 最近一分钟的每秒次数 (指数滑动平均)
+	public synchronized double oneMinuteRate() {
+		long now = System.nanoTime();
+		long ticks = (now - lastTickNs) / TICK_INTERVAL_NS;
+		if (ticks > 0) {
+			long current = count.sum();
+			// 未读取期间的增量视为均匀分布在这几个区间内
+			double instantRate = (current - lastTickCount) * (double) TimeUnit.SECONDS.toNanos(1) / (ticks * TICK_INTERVAL_NS);
+			if (initialized) {
+				rate += (1 - Math.pow(1 - ALPHA, ticks)) * (instantRate - rate);
+			} else {
+				rate = instantRate;
+				initialized = true;
+			}
+			lastTickCount = current;
+			lastTickNs += ticks * TICK_INTERVAL_NS;
+		}
+		return rate;
+	}
+}
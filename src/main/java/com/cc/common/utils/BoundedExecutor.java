@@ -0,0 +1,113 @@
+package com.cc.common.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	固定线程数 + 有界队列的执行器, 用于隔离 DelayedOperation 的回调 (bulkhead)
+ *
+ * 队列满时由提交线程自己执行 (CallerRuns), 回调不会丢失, 同时对提交方形成反压; saturated() 记录发生的次数。
+ * shutdown 之后提交的任务同样由提交线程执行, 单独记录在 ranAfterShutdown() 中。
+ * 统计队列深度与任务从提交到开始执行的等待时间。
+ */
+public class BoundedExecutor extends Logging implements Executor {
+
+	private final String name;
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong submitted = new AtomicLong(0);
+	private final AtomicLong started = new AtomicLong(0);
+	private final AtomicLong saturated = new AtomicLong(0);
+	private final AtomicLong ranAfterShutdown = new AtomicLong(0);
+	private final AtomicLong totalWaitNs = new AtomicLong(0);
+	private final AtomicLong maxWaitNs = new AtomicLong(0);
+
+	public BoundedExecutor(String name, int threads, int queueCapacity) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		if (queueCapacity <= 0)
+			throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+		this.name = name;
+		AtomicInteger threadId = new AtomicInteger(0);
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity),
+				runnable -> SchedulerThread.daemon(name + "-" + threadId.getAndIncrement(), runnable),
+				(runnable, e) -> {
+					if (e.isShutdown())
+						ranAfterShutdown.incrementAndGet();
+					else
+						saturated.incrementAndGet();
+					runnable.run();
+				});
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		submitted.incrementAndGet();
+		long enqueueNs = System.nanoTime();
+		executor.execute(() -> {
+			recordWait(System.nanoTime() - enqueueNs);
+			command.run();
+		});
+	}
+
+	private void recordWait(long waitNs) {
+		started.incrementAndGet();
+		totalWaitNs.addAndGet(waitNs);
+		long max;
+		do {
+			max = maxWaitNs.get();
+		} while (waitNs > max && !maxWaitNs.compareAndSet(max, waitNs));
+	}
+
+	public String name() {
+		return name;
+	}
+
+	// 当前排队等待执行的任务数
+	public int queueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int activeCount() {
+		return executor.getActiveCount();
+	}
+
+	public long submitted() {
+		return submitted.get();
+	}
+
+	// 队列已满、由提交线程自己执行的次数
+	public long saturated() {
+		return saturated.get();
+	}
+
+	// shutdown 之后提交、由提交线程自己执行的次数
+	public long ranAfterShutdown() {
+		return ranAfterShutdown.get();
+	}
+
+	// 提交到开始执行的平均等待时间 (纳秒), 只统计已开始执行的任务
+	public long averageWaitNs() {
+		long n = started.get();
+		return n == 0 ? 0 : totalWaitNs.get() / n;
+	}
+
+	public long maxWaitNs() {
+		return maxWaitNs.get();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,87 @@
+package com.cc.common.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	由后台线程按固定间隔刷新的时钟
+ */
+
+/**
+ * A coarse clock whose readings are refreshed by a background ticker every resolutionMs.
+ * Reads are a single volatile load instead of a System.nanoTime / currentTimeMillis call,
+ * at the price of lagging the real clock by up to the resolution.
+ *
+ * When used by a SystemTimer, tasks may expire up to the resolution early (the add reads a stale now)
+ * and buckets may be released up to the resolution late, so keep the resolution well below tickMs.
+ * Call close() to stop the ticker.
+ */
+public class CachedTime implements Time, AutoCloseable {
+
+	private final Time source;
+	private final long resolutionMs;
+	private final ShutdownableThread ticker;
+
+	private volatile long milliseconds;
+	private volatile long nanoseconds;
+	private volatile long hiResClockMs;
+
+	public CachedTime(long resolutionMs) {
+		this(Time.SYSTEM, resolutionMs);
+	}
+
+	public CachedTime(Time source, long resolutionMs) {
+		if (resolutionMs <= 0)
+			throw new IllegalArgumentException("resolutionMs must be positive: " + resolutionMs);
+		this.source = source;
+		this.resolutionMs = resolutionMs;
+		update();
+		this.ticker = new ShutdownableThread("cached-time-ticker", false) {
+			@Override
+			public void doWork() {
+				pause(resolutionMs, TimeUnit.MILLISECONDS);
+				update();
+			}
+		};
+		// 忘记 close 时不应阻止 JVM 退出
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	private void update() {
+		long nanos = source.nanoseconds();
+		milliseconds = source.milliseconds();
+		hiResClockMs = TimeUnit.NANOSECONDS.toMillis(nanos);
+		nanoseconds = nanos;
+	}
+
+	public long resolutionMs() {
+		return resolutionMs;
+	}
+
+	@Override
+	public long milliseconds() {
+		return milliseconds;
+	}
+
+	@Override
+	public long nanoseconds() {
+		return nanoseconds;
+	}
+
+	@Override
+	public long hiResClockMs() {
+		return hiResClockMs;
+	}
+
+	@Override
+	public void sleep(long ms) {
+		source.sleep(ms);
+	}
+
+	@Override
+	public void close() {
+		ticker.shutdown();
+	}
+}
@@ -46,8 +46,12 @@ public class Pool<K,V> implements Iterable<Pair<K,V>> {
 	}
 
 
+	// 先尝试无锁的 get, 只有 key 不存在时才进入 computeIfAbsent (会锁住对应的 bin)
 	private V getAndMaybePut(K key,Function<K,V> factory) {
-		return pool.computeIfAbsent(key, k->factory.apply(k));
+		V v = pool.get(key);
+		if (v == null)
+			v = pool.computeIfAbsent(key, factory);
+		return v;
 	}
 
 	public boolean contains(K id) {
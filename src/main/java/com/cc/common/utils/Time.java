@@ -31,6 +31,15 @@ public interface Time {
 		return TimeUnit.NANOSECONDS.toMillis(nanoseconds());
 	}
 
+	/**
+	 * Returns the high-resolution clock (the source of hiResClockMs) in the given unit.
+	 */
+	default long hiResClock(TimeUnit unit) {
+		if (unit == TimeUnit.MILLISECONDS)
+			return hiResClockMs();
+		return unit.convert(nanoseconds(), TimeUnit.NANOSECONDS);
+	}
+
 	/**
 	 * Returns the current value of the running JVM's high-resolution time source, in nanoseconds.
 	 *
@@ -0,0 +1,229 @@
+package com.cc.common.utils.timer;
+
+import com.cc.common.utils.Logging;
+import com.cc.common.utils.Time;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	把 DurableTimerTask 的调度记录到本地日志, 重启后恢复未到期的任务
+ */
+
+/**
+ * A Timer that keeps its {@link DurableTimerTask}s across restarts.
+ *
+ * Adding a DurableTimerTask appends a SCHEDULE record (id, absolute deadline, payload) to a segmented,
+ * memory-mapped {@link TimerLog} in dir before handing the task to the underlying timer; cancelling it or
+ * finishing its execute() appends a CANCEL / COMPLETE record. Other TimerTasks pass straight through and are
+ * not logged.
+ *
+ * Records are forced to disk by a background thread, every flushIntervalMs or as soon as a committing add is
+ * waiting; all records appended while a force is running share the next one (group commit). With syncCommit
+ * add and cancel return once their record is on disk; otherwise a crash can lose the last flushIntervalMs.
+ *
+ * On construction the log in dir is replayed: every timer that was scheduled and neither cancelled nor
+ * completed is rebuilt through {@link Recovery} and added to the underlying timer in batches, with the delay
+ * left until its original deadline (timers whose deadline passed while the process was down expire at once).
+ * Old segments are compacted in the background down to the live timers, so recovery reads roughly one record
+ * per pending timer.
+ *
+ * Deadlines are wall-clock (Time.milliseconds()), the underlying timer should use the same Time.
+ */
+public class DurableTimer extends Logging implements Timer {
+
+	public interface Recovery {
+		/**
+		 * Rebuild the task that was logged with id and payload. The returned task must have the same id.
+		 * @return the task, or null to drop the timer, which is then logged as cancelled
+		 */
+		DurableTimerTask recover(long id, byte[] payload);
+	}
+
+	private final static int segmentBytes_default = 64 * 1024 * 1024;
+	private final static long flushIntervalMs_default = 10L;
+	private final static int compactSegments_default = 4;
+	// 恢复时每批交给 timer.addAll 的任务数
+	private final static int RECOVERY_BATCH = 4096;
+
+	private final Timer timer;
+	private final TimerLog log;
+	private final boolean syncCommit;
+	private final Time time;
+	private final int recovered;
+
+	public DurableTimer(Timer timer, File dir, Recovery recovery) throws IOException {
+		this(timer, dir, recovery, segmentBytes_default, flushIntervalMs_default, false, compactSegments_default,
+				Time.SYSTEM);
+	}
+
+	/**
+	 * @param timer 实际调度任务的 timer, 由 shutdown() 一并关闭
+	 * @param segmentBytes 每个 segment 预分配的大小, 也是单个 payload 的上限
+	 * @param syncCommit 为 true 时 add / cancel 等待记录写入磁盘; COMPLETE 总是异步写入, 丢失时任务在恢复后再执行一次
+	 * @param compactSegments 封存的 segment 达到这个个数时在后台合并
+	 */
+	public DurableTimer(Timer timer, File dir, Recovery recovery, int segmentBytes, long flushIntervalMs,
+						boolean syncCommit, int compactSegments, Time time) throws IOException {
+		this.timer = timer;
+		this.syncCommit = syncCommit;
+		this.time = time;
+		this.log = new TimerLog(dir, segmentBytes, flushIntervalMs, compactSegments);
+		long startNs = System.nanoTime();
+		try {
+			this.recovered = recover(recovery);
+		} catch (IOException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+		info(String.format("Recovered %d timers from %s in %d ms", recovered, dir,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs)));
+	}
+
+	private int recover(Recovery recovery) throws IOException {
+		TimerLog.LiveSet live = log.replay();
+		long now = time.milliseconds();
+		List<TimerTask> batch = new ArrayList<>(Math.min(live.size(), RECOVERY_BATCH));
+		int[] recovered = {0};
+		live.forEach((type, id, deadlineMs, payload) -> {
+			DurableTimerTask task = recovery.recover(id, payload);
+			if (task == null) {
+				log.append(TimerLog.CANCEL, id, deadlineMs, TimerLog.EMPTY);
+				return;
+			}
+			if (task.id() != id)
+				throw new IllegalStateException("Recovered task for timer " + id + " has id " + task.id());
+			// 截止时间不变, 不再记录 SCHEDULE; 停机期间已经到期的任务立即过期
+			task.setDelay(Math.max(deadlineMs - now, 0L), TimeUnit.MILLISECONDS);
+			task.scheduled(this, deadlineMs);
+			batch.add(task);
+			recovered[0] += 1;
+			if (batch.size() == RECOVERY_BATCH) {
+				timer.addAll(batch);
+				batch.clear();
+			}
+		});
+		if (!batch.isEmpty())
+			timer.addAll(batch);
+		return recovered[0];
+	}
+
+	@Override
+	public void add(TimerTask timerTask) {
+		if (timerTask instanceof DurableTimerTask) {
+			DurableTimerTask task = (DurableTimerTask) timerTask;
+			long deadlineMs = deadline(time.milliseconds(), task);
+			commit(log.append(TimerLog.SCHEDULE, task.id(), deadlineMs, task.payload()));
+			task.scheduled(this, deadlineMs);
+		}
+		timer.add(timerTask);
+	}
+
+	// 整批的 SCHEDULE 只获取一次日志的锁, 同步提交时只等待一次 force
+	@Override
+	public void addAll(Collection<? extends TimerTask> timerTasks) {
+		List<DurableTimerTask> durable = new ArrayList<>();
+		for (TimerTask timerTask : timerTasks) {
+			if (timerTask instanceof DurableTimerTask)
+				durable.add((DurableTimerTask) timerTask);
+		}
+		if (!durable.isEmpty()) {
+			long now = time.milliseconds();
+			long[] deadlines = new long[durable.size()];
+			for (int i = 0; i < deadlines.length; i++)
+				deadlines[i] = deadline(now, durable.get(i));
+			commit(log.appendSchedules(durable, deadlines));
+			for (int i = 0; i < deadlines.length; i++)
+				durable.get(i).scheduled(this, deadlines[i]);
+		}
+		timer.addAll(timerTasks);
+	}
+
+	private static long deadline(long now, TimerTask task) {
+		long delayMs = task.delayMs();
+		return delayMs >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delayMs;
+	}
+
+	private void commit(long lsn) {
+		if (lsn < 0)
+			throw new IllegalStateException("DurableTimer has been shut down");
+		if (syncCommit)
+			log.awaitFlush(lsn);
+	}
+
+	void logCancelled(DurableTimerTask task) {
+		long lsn = log.append(TimerLog.CANCEL, task.id(), task.deadlineMs(), TimerLog.EMPTY);
+		if (syncCommit && lsn >= 0)
+			log.awaitFlush(lsn);
+	}
+
+	// shutdown 之后完成的任务不再记录, 恢复后会再执行一次
+	void logCompleted(DurableTimerTask task) {
+		log.append(TimerLog.COMPLETE, task.id(), task.deadlineMs(), TimerLog.EMPTY);
+	}
+
+	@Override
+	public boolean advanceClock(long timeoutMs) {
+		return timer.advanceClock(timeoutMs);
+	}
+
+	@Override
+	public void wakeup() {
+		timer.wakeup();
+	}
+
+	@Override
+	public boolean supportsWakeup() {
+		return timer.supportsWakeup();
+	}
+
+	@Override
+	public int size() {
+		return timer.size();
+	}
+
+	@Override
+	public int expirationQueueDepth() {
+		return timer.expirationQueueDepth();
+	}
+
+	// 构造时从日志恢复的任务数
+	public int recovered() {
+		return recovered;
+	}
+
+	public int segments() {
+		return log.segments();
+	}
+
+	public long appends() {
+		return log.appends();
+	}
+
+	public long flushes() {
+		return log.flushes();
+	}
+
+	public long compactions() {
+		return log.compactions();
+	}
+
+	/**
+	 * 关闭 timer 与日志, 未到期的任务留在日志中, 下次构造时恢复
+	 */
+	@Override
+	public void shutdown() {
+		timer.shutdown();
+		try {
+			log.close();
+		} catch (IOException e) {
+			error("Failed to close timer log", e);
+		}
+	}
+}
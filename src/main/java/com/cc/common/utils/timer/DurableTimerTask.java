@@ -0,0 +1,86 @@
+package com.cc.common.utils.timer;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	可以在重启后恢复的 TimerTask, 由 DurableTimer 记录到 TimerLog
+ */
+
+/**
+ * A TimerTask that survives a restart when added to a {@link DurableTimer}.
+ *
+ * The task is identified by id, and payload is whatever the application needs to rebuild it; both are written
+ * to the log together with the absolute deadline. After a restart {@link DurableTimer.Recovery} turns
+ * (id, payload) back into a task, which is scheduled for what is left of its original deadline.
+ *
+ * Subclasses implement {@link #execute()} instead of run(). Adding, cancelling and finishing execute() are
+ * logged, so a task that ran to completion or was cancelled is not recovered. A task that was running when the
+ * process died is recovered and executed again: expirations are delivered at least once.
+ */
+public abstract class DurableTimerTask extends TimerTask {
+
+	private final static int IDLE = 0;
+	private final static int SCHEDULED = 1;
+	private final static int RUNNING = 2;
+
+	private final static AtomicIntegerFieldUpdater<DurableTimerTask> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(DurableTimerTask.class, "state");
+
+	private final long id;
+	private final byte[] payload;
+	// 最近一次加入 DurableTimer 时记录的截止时间 (Time.milliseconds())
+	private volatile long deadlineMs = 0L;
+	private volatile int state = IDLE;
+	private volatile DurableTimer timer = null;
+
+	protected DurableTimerTask(long id, byte[] payload, long delayMs) {
+		this.id = id;
+		this.payload = payload == null ? new byte[0] : payload;
+		this.delayMs = delayMs;
+	}
+
+	public long id() {
+		return id;
+	}
+
+	public byte[] payload() {
+		return payload;
+	}
+
+	public long deadlineMs() {
+		return deadlineMs;
+	}
+
+	// 到期后执行
+	protected abstract void execute();
+
+	// execute 中再次加入 timer 的任务以新的 SCHEDULE 为准, 不再记录本次的完成
+	@Override
+	public final void run() {
+		STATE.compareAndSet(this, SCHEDULED, RUNNING);
+		try {
+			execute();
+		} finally {
+			DurableTimer owner = timer;
+			if (owner != null && STATE.compareAndSet(this, RUNNING, IDLE))
+				owner.logCompleted(this);
+		}
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		DurableTimer owner = timer;
+		if (owner != null && (STATE.compareAndSet(this, SCHEDULED, IDLE) || STATE.compareAndSet(this, RUNNING, IDLE)))
+			owner.logCancelled(this);
+	}
+
+	// 由 DurableTimer 在记录 SCHEDULE (或从日志恢复) 之后、加入时间轮之前调用
+	void scheduled(DurableTimer timer, long deadlineMs) {
+		this.timer = timer;
+		this.deadlineMs = deadlineMs;
+		state = SCHEDULED;
+	}
+}
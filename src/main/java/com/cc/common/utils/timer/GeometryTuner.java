@@ -0,0 +1,168 @@
+package com.cc.common.utils.timer;
+
+import com.cc.common.metrics.Histogram;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	根据 add 的延迟分布推荐时间轮的 tick 与 wheelSize
+ */
+
+/**
+ * Samples the delays passed to SystemTimer.add and recommends a wheel geometry that keeps cascade work small.
+ *
+ * A task whose delay is beyond tick * wheelSize is placed in an overflow level and moved down (cascaded) once
+ * per level on its way to expiration. The recommended geometry:
+ *  tick      - a power of two of about 1/16 of the 10th percentile delay, clamped to [minTick, maxTick], so
+ *              short delays keep their relative precision. With minTick == maxTick the tick never changes.
+ *  wheelSize - the smallest power of two in [minWheelSize, maxWheelSize] whose first level covers the 90th
+ *              percentile delay, so most tasks never cascade.
+ *  levels    - the number of levels needed to hold the longest delay seen, reported only; levels above the
+ *              first are still created on demand.
+ *
+ * Delays are sampled at 1 in SAMPLE_RATE adds into a window. A recommendation is made once a window is full
+ * and only returned when two consecutive windows agree on it and it differs from the current geometry, so a
+ * short burst of unusual delays does not rebuild the wheel.
+ *
+ * sample is thread-safe; recommend is only called by the reaper.
+ */
+public class GeometryTuner {
+
+	private final static int SAMPLE_RATE = 64;
+	private final static int WINDOW_SAMPLES = 2048;
+	private final static double TICK_QUANTILE = 0.1;
+	private final static int TICK_FRACTION = 16;
+	private final static double COVERED_QUANTILE = 0.9;
+
+	private final long minTick;
+	private final long maxTick;
+	private final int minWheelSize;
+	private final int maxWheelSize;
+
+	private volatile Histogram window = new Histogram();
+	// 上一个窗口的推荐值, 只由 reaper 访问
+	private Geometry pending = null;
+	private volatile Geometry last = null;
+
+	/**
+	 * 只调整 wheelSize, tick 固定为 tick
+	 */
+	public GeometryTuner(long tick) {
+		this(tick, tick);
+	}
+
+	public GeometryTuner(long minTick, long maxTick) {
+		this(minTick, maxTick, 16, 1024);
+	}
+
+	/**
+	 * @param minTick 与 maxTick 以 SystemTimer 的 timeUnit 为单位; 任务最多提前一个 tick 到期, maxTick 即可接受的最大误差
+	 * @param maxWheelSize 每层 bucket 个数的上限, 每个 bucket 常驻一个 TimerTaskList
+	 */
+	public GeometryTuner(long minTick, long maxTick, int minWheelSize, int maxWheelSize) {
+		if (minTick <= 0 || maxTick < minTick)
+			throw new IllegalArgumentException("Invalid tick range: [" + minTick + ", " + maxTick + "]");
+		if (minWheelSize <= 0 || maxWheelSize < minWheelSize)
+			throw new IllegalArgumentException("Invalid wheel size range: [" + minWheelSize + ", " + maxWheelSize + "]");
+		this.minTick = minTick;
+		this.maxTick = maxTick;
+		this.minWheelSize = minWheelSize;
+		this.maxWheelSize = maxWheelSize;
+	}
+
+	// 由 add 的线程调用, 未被采样时只有一次 ThreadLocalRandom
+	void sample(long delay) {
+		if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0)
+			window.record(delay);
+	}
+
+	/**
+	 * @return 与当前 geometry 不同且连续两个窗口一致的推荐值, 否则为 null
+	 */
+	Geometry recommend(long tick, int wheelSize) {
+		Histogram full = window;
+		if (full.count() < WINDOW_SAMPLES)
+			return null;
+		window = new Histogram();
+		Geometry candidate = geometryFor(full);
+		Geometry previous = pending;
+		pending = candidate;
+		last = candidate;
+		if (candidate.tick == tick && candidate.wheelSize == wheelSize)
+			return null;
+		return candidate.equals(previous) ? candidate : null;
+	}
+
+	// 最近一个窗口的推荐值, 没有完整的窗口时为 null
+	public Geometry lastRecommendation() {
+		return last;
+	}
+
+	Geometry geometryFor(Histogram delays) {
+		long shortest = Math.max(delays.percentile(TICK_QUANTILE) / TICK_FRACTION, 1L);
+		long tick = Math.min(Math.max(Long.highestOneBit(shortest), minTick), maxTick);
+
+		long covered = delays.percentile(COVERED_QUANTILE);
+		int wheelSize = minWheelSize;
+		while (wheelSize < maxWheelSize && tick * wheelSize <= covered + tick)
+			wheelSize = (int) Math.min((long) wheelSize << 1, maxWheelSize);
+
+		int levels = 1;
+		long interval = tick * wheelSize;
+		while (interval <= delays.max()) {
+			levels += 1;
+			if (interval > Long.MAX_VALUE / wheelSize)
+				break;
+			interval *= wheelSize;
+		}
+		return new Geometry(tick, wheelSize, levels);
+	}
+
+	public static final class Geometry {
+
+		private final long tick;
+		private final int wheelSize;
+		private final int levels;
+
+		Geometry(long tick, int wheelSize, int levels) {
+			this.tick = tick;
+			this.wheelSize = wheelSize;
+			this.levels = levels;
+		}
+
+		public long tick() {
+			return tick;
+		}
+
+		public int wheelSize() {
+			return wheelSize;
+		}
+
+		// 容纳采样到的最长延迟所需的层数
+		public int levels() {
+			return levels;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Geometry))
+				return false;
+			Geometry geometry = (Geometry) o;
+			return tick == geometry.tick && wheelSize == geometry.wheelSize;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Long.hashCode(tick) + wheelSize;
+		}
+
+		@Override
+		public String toString() {
+			return "Geometry{tick:" + tick + ", wheelSize:" + wheelSize + ", levels:" + levels + "}";
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package com.cc.common.utils.timer;
+
+import com.cc.common.utils.Time;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	以 long handle 标识定时器的分层时间轮, entry 以基本类型数组 (struct-of-arrays) 存储
+ */
+
+/**
+ * A hierarchical timing wheel for very large numbers of timers (sessions, leases).
+ * Instead of one TimerTask / TimerTaskEntry object graph per timer, every timer is a slot in a set of
+ * parallel primitive arrays (deadline, id, next / prev links, bucket, generation), about 32 bytes per
+ * timer and nothing for the GC to trace.
+ *
+ * schedule(delayMs, id) returns a handle, cancel(handle) removes the timer in O(1). A handle packs the
+ * slot index with the slot's generation, so a handle whose timer already fired or was cancelled is
+ * simply rejected even if the slot has been reused. Handles are never 0, callers can use 0 as "no timer".
+ *
+ * Expired timers are delivered as their id to onExpiration, on the thread calling advanceClock and
+ * outside the lock, so the callback may schedule or cancel. Like SystemTimer, a timer may fire up to
+ * tickMs early since a bucket expires at its beginning.
+ *
+ * schedule / cancel are thread-safe; advanceClock must be called from a single reaper thread.
+ */
+public class HandleTimer {
+
+	private final static int NIL = -1;
+	// 空闲 slot 的 bucket 标记
+	private final static int FREE = -1;
+	// bucket 0 存放已到期、等待回调的 slot, 时间轮的 bucket 从 1 开始
+	private final static int DUE = 0;
+	private final static int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private final long tickMs;
+	private final int wheelSize;
+	private final Time time;
+	private final LongConsumer onExpiration;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// 以 slot 为下标的并行数组
+	private long[] deadlines;
+	private long[] ids;
+	private int[] next;
+	private int[] prev;
+	// slot 所在的 bucket: DUE, 1 + level * wheelSize + index, 空闲时为 FREE
+	private int[] buckets;
+	// slot 每次释放时加一, 旧的 handle 随之失效
+	private int[] generations;
+	private int freeHead = NIL;
+	// 已经分配过的 slot 个数, 之后的 slot 从未使用
+	private int used = 0;
+	private volatile int size = 0;
+
+	// 每层时间轮的 tick 与当前时间, 上层按需创建
+	private long[] levelTickMs = new long[4];
+	private long[] levelTime = new long[4];
+	private int levels = 0;
+	// 各 bucket 的链表头, 下标为 bucket
+	private int[] heads;
+	// 非空 bucket 的位图 (不含 DUE), 下标同 heads; advance 据此跳过没有定时器的 tick
+	private long[] occupied;
+
+	// advanceClock 取出的到期 id, 只由 reaper 使用
+	private long[] expired = new long[64];
+
+	public HandleTimer(long tickMs, int wheelSize, LongConsumer onExpiration) {
+		this(tickMs, wheelSize, 1024, Time.SYSTEM, onExpiration);
+	}
+
+	/**
+	 * @param initialCapacity 预分配的 slot 个数, 预计的定时器数量已知时传入可以避免扩容时的数组复制
+	 * @param onExpiration 参数为到期定时器的 id
+	 */
+	public HandleTimer(long tickMs, int wheelSize, int initialCapacity, Time time, LongConsumer onExpiration) {
+		if (tickMs <= 0 || wheelSize <= 0)
+			throw new IllegalArgumentException("tickMs and wheelSize must be positive: " + tickMs + ", " + wheelSize);
+		this.tickMs = tickMs;
+		this.wheelSize = wheelSize;
+		this.time = time;
+		this.onExpiration = onExpiration;
+
+		int capacity = Math.max(initialCapacity, 16);
+		this.deadlines = new long[capacity];
+		this.ids = new long[capacity];
+		this.next = new int[capacity];
+		this.prev = new int[capacity];
+		this.buckets = new int[capacity];
+		this.generations = new int[capacity];
+		Arrays.fill(generations, 1);
+
+		this.heads = new int[1 + wheelSize];
+		Arrays.fill(heads, NIL);
+		this.occupied = new long[(heads.length + 63) >>> 6];
+		long startMs = time.hiResClockMs();
+		levelTickMs[0] = tickMs;
+		levelTime[0] = startMs - (startMs % tickMs);
+		levels = 1;
+	}
+
+	/**
+	 * 添加一个 delayMs 之后到期的定时器
+	 * @param id 到期时交给 onExpiration 的值
+	 * @return 用于 cancel 的 handle
+	 */
+	public long schedule(long delayMs, long id) {
+		long now = time.hiResClockMs();
+		long deadline = delayMs >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + Math.max(delayMs, 0L);
+		lock.lock();
+		try {
+			int slot = allocate();
+			deadlines[slot] = deadline;
+			ids[slot] = id;
+			place(slot);
+			size += 1;
+			return ((long) generations[slot] << 32) | slot;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 取消 handle 对应的定时器
+	 * @return 定时器已经到期、已被取消或 handle 无效时返回 false
+	 */
+	public boolean cancel(long handle) {
+		int slot = (int) handle;
+		int generation = (int) (handle >>> 32);
+		lock.lock();
+		try {
+			if (slot < 0 || slot >= used || generations[slot] != generation || buckets[slot] == FREE)
+				return false;
+			unlink(slot);
+			free(slot);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 推动时间轮并回调所有到期的定时器; 下一个 tick 还没到时最多等待 timeoutMs (按真实时间)
+	 * @return 是否有定时器到期
+	 */
+	public boolean advanceClock(long timeoutMs) {
+		long now = time.hiResClockMs();
+		long nextTickMs = levelTime[0] + tickMs;
+		if (now < nextTickMs && timeoutMs > 0) {
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.min(timeoutMs, nextTickMs - now)));
+			now = time.hiResClockMs();
+		}
+		int count;
+		lock.lock();
+		try {
+			advance(now);
+			count = drainDue();
+		} finally {
+			lock.unlock();
+		}
+		// 在锁外回调, 回调中可以 schedule / cancel
+		for (int i = 0; i < count; i++)
+			onExpiration.accept(expired[i]);
+		return count > 0;
+	}
+
+	// 包括已到期但还没有回调的定时器
+	public int size() {
+		return size;
+	}
+
+	public int levels() {
+		lock.lock();
+		try {
+			return levels;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int allocate() {
+		if (freeHead != NIL) {
+			int slot = freeHead;
+			freeHead = next[slot];
+			return slot;
+		}
+		if (used == deadlines.length)
+			grow();
+		return used++;
+	}
+
+	private void grow() {
+		int capacity = deadlines.length;
+		if (capacity == MAX_CAPACITY)
+			throw new IllegalStateException("HandleTimer is full: " + capacity + " timers");
+		int newCapacity = (int) Math.min((long) capacity * 2, MAX_CAPACITY);
+		deadlines = Arrays.copyOf(deadlines, newCapacity);
+		ids = Arrays.copyOf(ids, newCapacity);
+		next = Arrays.copyOf(next, newCapacity);
+		prev = Arrays.copyOf(prev, newCapacity);
+		buckets = Arrays.copyOf(buckets, newCapacity);
+		generations = Arrays.copyOf(generations, newCapacity);
+		Arrays.fill(generations, capacity, newCapacity, 1);
+	}
+
+	private void free(int slot) {
+		buckets[slot] = FREE;
+		int generation = generations[slot] + 1;
+		// generation 不为 0, 因此 handle 不为 0
+		generations[slot] = generation == 0 ? 1 : generation;
+		next[slot] = freeHead;
+		freeHead = slot;
+		size -= 1;
+	}
+
+	private void link(int slot, int bucket) {
+		int head = heads[bucket];
+		next[slot] = head;
+		prev[slot] = NIL;
+		if (head != NIL)
+			prev[head] = slot;
+		heads[bucket] = slot;
+		buckets[slot] = bucket;
+		if (bucket != DUE)
+			occupied[bucket >>> 6] |= 1L << bucket;
+	}
+
+	private void unlink(int slot) {
+		int p = prev[slot];
+		int n = next[slot];
+		if (p == NIL) {
+			int bucket = buckets[slot];
+			heads[bucket] = n;
+			if (n == NIL)
+				occupied[bucket >>> 6] &= ~(1L << bucket);
+		} else
+			next[p] = n;
+		if (n != NIL)
+			prev[n] = p;
+	}
+
+	// 与 TimingWheel.add 相同: 落入当前 tick 的定时器已经到期, 否则放入能容纳其过期时间的最低一层
+	private void place(int slot) {
+		long deadline = deadlines[slot];
+		if (deadline < levelTime[0] + tickMs) {
+			link(slot, DUE);
+			return;
+		}
+		for (int level = 0; ; level++) {
+			if (level == levels)
+				addLevel();
+			long tick = levelTickMs[level];
+			// 最上层的范围溢出时视为无限大
+			long interval = tick > Long.MAX_VALUE / wheelSize ? Long.MAX_VALUE : tick * wheelSize;
+			if (deadline - levelTime[level] < interval) {
+				int index = (int) ((deadline / tick) % wheelSize);
+				link(slot, 1 + level * wheelSize + index);
+				return;
+			}
+		}
+	}
+
+	private void addLevel() {
+		if (levels == levelTickMs.length) {
+			levelTickMs = Arrays.copyOf(levelTickMs, levels * 2);
+			levelTime = Arrays.copyOf(levelTime, levels * 2);
+		}
+		long tick = levelTickMs[levels - 1] * wheelSize;
+		long lowerTime = levelTime[levels - 1];
+		levelTickMs[levels] = tick;
+		levelTime[levels] = lowerTime - (lowerTime % tick);
+		int oldLength = heads.length;
+		heads = Arrays.copyOf(heads, oldLength + wheelSize);
+		Arrays.fill(heads, oldLength, heads.length, NIL);
+		occupied = Arrays.copyOf(occupied, (heads.length + 63) >>> 6);
+		levels += 1;
+	}
+
+	/*
+	 * 推进到 now: 每个 tick 推进最底层, 上层跨过 bucket 边界时把该 bucket 的定时器重新插入低层 (cascade)。
+	 * 只有 cascade 非空 bucket 的 tick 需要逐个处理, 其余的 tick 按 occupied 位图直接跳过,
+	 * 因此停顿之后或只有很远的定时器时, 一次推进的代价与经过的 tick 数无关。
+	 */
+	private void advance(long now) {
+		while (levelTime[0] + tickMs <= now) {
+			long next = nextCascade();
+			// 跳到 next 的前一个 tick, 中间的 tick 都不会 cascade 任何定时器; next 在 now 之后时直接跳到 now
+			long target = next > now ? now : next - tickMs;
+			for (int level = 0; level < levels; level++)
+				levelTime[level] = target - (target % levelTickMs[level]);
+			if (next > now)
+				return;
+			tick();
+		}
+	}
+
+	// 推进一个 tick, cascade 跨过边界的各层
+	private void tick() {
+		long current = levelTime[0] + tickMs;
+		levelTime[0] = current;
+		int highest = 0;
+		for (int level = 1; level < levels; level++) {
+			long levelCurrent = current - (current % levelTickMs[level]);
+			if (levelCurrent == levelTime[level])
+				break;
+			levelTime[level] = levelCurrent;
+			highest = level;
+		}
+		for (int level = highest; level >= 0; level--)
+			cascade(level, (int) ((levelTime[level] / levelTickMs[level]) % wheelSize));
+	}
+
+	/**
+	 * 下一个会 cascade 非空 bucket 的 tick 的时间: 每层当前槽位之后第一个非空 bucket 的开始时间中最早的一个,
+	 * 没有非空 bucket 时返回 Long.MAX_VALUE。当前槽位本身在最后查找, 最上层可能有绕了一圈的定时器
+	 */
+	private long nextCascade() {
+		long next = Long.MAX_VALUE;
+		for (int level = 0; level < levels; level++) {
+			long tick = levelTickMs[level];
+			int base = 1 + level * wheelSize;
+			int current = (int) ((levelTime[level] / tick) % wheelSize);
+			int bucket = nextOccupied(base + current + 1, base + wheelSize);
+			int distance;
+			if (bucket >= 0) {
+				distance = bucket - base - current;
+			} else {
+				bucket = nextOccupied(base, base + current + 1);
+				if (bucket < 0)
+					continue;
+				distance = bucket - base + wheelSize - current;
+			}
+			long remaining = Long.MAX_VALUE - levelTime[level];
+			long start = tick > remaining / distance ? Long.MAX_VALUE : levelTime[level] + tick * distance;
+			if (start < next)
+				next = start;
+		}
+		return next;
+	}
+
+	// [from, to) 中第一个非空的 bucket, 不存在返回 -1
+	private int nextOccupied(int from, int to) {
+		if (from >= to)
+			return -1;
+		int word = from >>> 6;
+		long bits = occupied[word] & (-1L << from);
+		while (true) {
+			if (bits != 0) {
+				int bucket = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return bucket < to ? bucket : -1;
+			}
+			if (++word > (to - 1) >>> 6)
+				return -1;
+			bits = occupied[word];
+		}
+	}
+
+	private void cascade(int level, int index) {
+		int bucket = 1 + level * wheelSize + index;
+		int slot = heads[bucket];
+		heads[bucket] = NIL;
+		occupied[bucket >>> 6] &= ~(1L << bucket);
+		while (slot != NIL) {
+			int n = next[slot];
+			place(slot);
+			slot = n;
+		}
+	}
+
+	// 释放所有到期的 slot, 其 id 放入 expired 等待回调
+	private int drainDue() {
+		int count = 0;
+		int slot = heads[DUE];
+		heads[DUE] = NIL;
+		while (slot != NIL) {
+			int n = next[slot];
+			if (count == expired.length)
+				expired = Arrays.copyOf(expired, count * 2);
+			expired[count++] = ids[slot];
+			free(slot);
+			slot = n;
+		}
+		return count;
+	}
+}
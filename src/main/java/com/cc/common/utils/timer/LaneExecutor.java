@@ -0,0 +1,199 @@
+package com.cc.common.utils.timer;
+
+import com.cc.common.utils.SchedulerThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	按 Priority 分道 (lane) 排队、按权重调度的 taskExecutor
+ */
+
+/**
+ * An executor for SystemTimer expirations with one queue (lane) per {@link Priority}.
+ *
+ * A TimerTaskEntry is queued on the lane of its task's priority, any other Runnable on NORMAL. The worker
+ * threads are shared by all lanes and pick the next task with smooth weighted round-robin over the non-empty
+ * lanes: while every lane is backlogged, lane i gets weights[i] / sum(weights) of the executions, and a lane
+ * that was empty gets its next task ahead of any lane with a lower weight. So a flood of BULK expirations
+ * delays a CRITICAL timeout by at most the BULK task already running on each worker, not by the whole
+ * flood queued ahead of it, while BULK still makes progress.
+ *
+ * Like a ThreadPoolExecutor, shutdown lets the workers finish the queued tasks and rejects new ones.
+ */
+public class LaneExecutor extends AbstractExecutorService {
+
+	private final static Logger log = LoggerFactory.getLogger(LaneExecutor.class);
+	private final static Priority[] PRIORITIES = Priority.values();
+
+	private final List<Queue<Runnable>> lanes;
+	// 每个 lane 中排队的任务数, ConcurrentLinkedQueue.size() 需要遍历队列
+	private final LongAdder[] depths;
+	private final int[] weights;
+	// smooth weighted round-robin 的当前值, 只在 synchronized (this) 内访问
+	private final long[] current;
+	// 所有 lane 中排队的任务数, shutdown 时额外释放 workers 个许可唤醒空闲的 worker
+	private final Semaphore pending = new Semaphore(0);
+	private final Thread[] workers;
+	private final CountDownLatch terminated;
+	private volatile boolean shutdown = false;
+
+	// CRITICAL : NORMAL : BULK = 8 : 4 : 1
+	public LaneExecutor(String name, int threads) {
+		this(name, threads, new int[]{8, 4, 1});
+	}
+
+	/**
+	 * @param weights 下标为 Priority.ordinal(), 每个 lane 的权重必须为正数
+	 */
+	public LaneExecutor(String name, int threads, int[] weights) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		if (weights.length != PRIORITIES.length)
+			throw new IllegalArgumentException("Expected " + PRIORITIES.length + " weights but got " + weights.length);
+		for (int weight : weights) {
+			if (weight <= 0)
+				throw new IllegalArgumentException("weights must be positive: " + weight);
+		}
+		this.weights = weights.clone();
+		this.current = new long[weights.length];
+		this.lanes = new ArrayList<>(weights.length);
+		this.depths = new LongAdder[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			lanes.add(new ConcurrentLinkedQueue<>());
+			depths[i] = new LongAdder();
+		}
+		this.terminated = new CountDownLatch(threads);
+		this.workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = SchedulerThread.nonDaemon("executor-" + name + "-" + i, this::work);
+			workers[i].start();
+		}
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (shutdown)
+			throw new RejectedExecutionException("LaneExecutor has been shut down");
+		Priority priority = command instanceof TimerTaskEntry
+				? ((TimerTaskEntry) command).timerTask().priority() : Priority.NORMAL;
+		Queue<Runnable> lane = lanes.get(priority.ordinal());
+		depths[priority.ordinal()].increment();
+		lane.offer(command);
+		// 与 shutdown 并发时 worker 可能已经退出, 像 ThreadPoolExecutor 一样取回任务并拒绝; 取不回说明已被执行或被 shutdownNow 取走
+		if (shutdown && lane.remove(command)) {
+			depths[priority.ordinal()].decrement();
+			throw new RejectedExecutionException("LaneExecutor has been shut down");
+		}
+		pending.release();
+	}
+
+	// 该 lane 中等待执行的任务数
+	public int queued(Priority priority) {
+		return (int) depths[priority.ordinal()].sum();
+	}
+
+	public int queued() {
+		long queued = 0;
+		for (LongAdder depth : depths)
+			queued += depth.sum();
+		return (int) queued;
+	}
+
+	private void work() {
+		try {
+			while (true) {
+				pending.acquire();
+				Runnable task = next();
+				if (task == null) {
+					// shutdown 释放的许可, 或任务已被 shutdownNow 取走
+					if (shutdown)
+						return;
+					continue;
+				}
+				try {
+					task.run();
+				} catch (Throwable e) {
+					log.error("Task {} failed", task, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			// shutdownNow 中断了 worker: 恢复中断标记后退出
+			Thread.currentThread().interrupt();
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	// 在非空的 lane 中按 smooth weighted round-robin 选出下一个任务; 空的 lane 不累积权重
+	private synchronized Runnable next() {
+		int selected = -1;
+		int activeWeight = 0;
+		for (int i = 0; i < weights.length; i++) {
+			if (lanes.get(i).isEmpty()) {
+				current[i] = 0;
+				continue;
+			}
+			current[i] += weights[i];
+			activeWeight += weights[i];
+			if (selected < 0 || current[i] > current[selected])
+				selected = i;
+		}
+		if (selected < 0)
+			return null;
+		current[selected] -= activeWeight;
+		Runnable task = lanes.get(selected).poll();
+		if (task != null)
+			depths[selected].decrement();
+		return task;
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		pending.release(workers.length);
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown();
+		List<Runnable> drained = new ArrayList<>();
+		for (int i = 0; i < weights.length; i++) {
+			Runnable task;
+			while ((task = lanes.get(i).poll()) != null) {
+				depths[i].decrement();
+				drained.add(task);
+			}
+		}
+		for (Thread worker : workers)
+			worker.interrupt();
+		return drained;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+}
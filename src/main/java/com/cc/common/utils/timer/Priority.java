@@ -0,0 +1,14 @@
+package com.cc.common.utils.timer;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	TimerTask 到期后执行的优先级, 由 LaneExecutor 分别排队、按权重调度
+ */
+public enum Priority {
+	// 对延迟敏感的超时, 如 produce / fetch 请求
+	CRITICAL,
+	NORMAL,
+	// 可以延后处理的大量到期, 如客户端批量断开后的 session 清理
+	BULK
+}
@@ -1,11 +1,17 @@
 package com.cc.common.utils.timer;
 
+import com.cc.common.metrics.JmxRegistry;
 import com.cc.common.utils.Logging;
 import com.cc.common.utils.SchedulerThread;
 import com.cc.common.utils.Time;
 
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -15,83 +21,369 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class SystemTimer  extends Logging implements Timer{
 
+	/**
+	 * bucket 的调度方式
+	 *  DELAY_QUEUE:  过期时间变化的 bucket 放入 DelayQueue, reaper 从 DelayQueue 中取出到期的 bucket
+	 *  WHEEL_CURSOR: 每层时间轮用位图记录非空的 bucket, reaper 从各层的当前槽位开始直接查找到期的 bucket;
+	 *                add 不再经过 DelayQueue 的全局锁与 O(log n) 的堆
+	 */
+	public enum Scheduling {
+		DELAY_QUEUE,
+		WHEEL_CURSOR
+	}
+
 	// 任务定时调度的时间近似度（毫秒为单位）
 	private final static long tickMs_default = 10;
 	private final static int wheelSize_default = 20;
-	private final static long startMs_default = Time.SYSTEM.hiResClockMs();
 
 	// 用于调度 Task 的 run()
 	private final ExecutorService taskExecutor;
+	private final Time time;
+	// 时间轮的 tick、过期时间与任务延迟的单位; 默认为毫秒, 需要亚毫秒精度时可以使用 MICROSECONDS 或 NANOSECONDS
+	private final TimeUnit timeUnit;
+	private final Scheduling scheduling;
 	private final DelayQueue<TimerTaskList> delayQueue;
-	private final AtomicInteger taskCounter;
-	private final TimingWheel timingWheel;
+	private final LongAdder taskCounter;
+	// geometry 调整时在写锁内整体替换
+	private volatile TimingWheel timingWheel;
+	// 为 null 时 geometry 固定; 否则采样 add 的延迟, 由 reaper 在推荐的 geometry 稳定后重建时间轮
+	private final GeometryTuner tuner;
+	private final TimerMetrics metrics;
+	private final ObjectName metricsName;
 
 	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 	private final ReentrantReadWriteLock.ReadLock readLock = readWriteLock.readLock();
 	private final ReentrantReadWriteLock.WriteLock writeLock = readWriteLock.writeLock();
 
+	// WHEEL_CURSOR 模式: reaper 休眠到 wakeupTime (timeUnit 为单位), 更早的 bucket 被调度时由 add 的线程唤醒;
+	// Long.MIN_VALUE 表示 reaper 没有在休眠, add 不需要唤醒
+	private volatile long wakeupTime = Long.MIN_VALUE;
+	private volatile Thread reaper = null;
+	// wakeup(): DELAY_QUEUE 模式下放入一个立即到期的空 bucket 使 poll 返回; WHEEL_CURSOR 模式下设置标记并 unpark
+	private final TimerTaskList wakeupBucket = new TimerTaskList(new LongAdder());
+	private volatile boolean wakeupRequested = false;
+
 	public SystemTimer(String executorName) {
-		this(executorName, tickMs_default, wheelSize_default, startMs_default);
+		this(executorName, Time.SYSTEM);
+	}
+
+	// 时间轮从 time 的当前时刻开始
+	public SystemTimer(String executorName, Time time) {
+		this(executorName, tickMs_default, wheelSize_default, time.hiResClockMs(), newTaskExecutor(executorName), time);
+	}
+
+	/**
+	 * 以 timeUnit 为单位的时间轮, 例如 tick = 100, timeUnit = MICROSECONDS 时任务的调度精度为 100 微秒;
+	 * 任务的延迟通过 TimerTask.setDelay(delay, unit) 设置
+	 */
+	public SystemTimer(String executorName, long tick, TimeUnit timeUnit) {
+		this(executorName, tick, wheelSize_default, Time.SYSTEM.hiResClock(timeUnit), timeUnit,
+				newTaskExecutor(executorName), Time.SYSTEM, Scheduling.DELAY_QUEUE);
+	}
+
+	/**
+	 * 以默认的 geometry 开始, 按 tuner 根据实际延迟推荐的 tick / wheelSize 调整
+	 */
+	public SystemTimer(String executorName, GeometryTuner tuner) {
+		this(executorName, tickMs_default, wheelSize_default, Time.SYSTEM.hiResClockMs(), TimeUnit.MILLISECONDS,
+				newTaskExecutor(executorName), Time.SYSTEM, Scheduling.DELAY_QUEUE, tuner);
 	}
 
 	public SystemTimer(String executorName, long tickMs, int wheelSize, long startMs) {
-		taskExecutor = Executors.newFixedThreadPool(1, runnable ->
+		this(executorName, tickMs, wheelSize, startMs, newTaskExecutor(executorName));
+	}
+
+	public SystemTimer(String executorName, long tickMs, int wheelSize, long startMs, ExecutorService taskExecutor) {
+		this(executorName, tickMs, wheelSize, startMs, taskExecutor, Time.SYSTEM);
+	}
+
+	/**
+	 * @param taskExecutor 执行到期任务的 run(), 由 shutdown() 一并关闭;
+	 *                     可以传入多线程或有界队列的线程池, 避免慢任务拖延其它任务的过期
+	 * @param time 任务的过期时间与 bucket 的到期都以它为准, 测试中可以传入 MockTime 以虚拟时间驱动
+	 */
+	public SystemTimer(String executorName, long tickMs, int wheelSize, long startMs, ExecutorService taskExecutor,
+					   Time time) {
+		this(executorName, tickMs, wheelSize, startMs, taskExecutor, time, Scheduling.DELAY_QUEUE);
+	}
+
+	public SystemTimer(String executorName, long tickMs, int wheelSize, long startMs, ExecutorService taskExecutor,
+					   Time time, Scheduling scheduling) {
+		this(executorName, tickMs, wheelSize, startMs, TimeUnit.MILLISECONDS, taskExecutor, time, scheduling);
+	}
+
+	/**
+	 * @param tick 与 start 都以 timeUnit 为单位, start 通常为 time.hiResClock(timeUnit)
+	 */
+	public SystemTimer(String executorName, long tick, int wheelSize, long start, TimeUnit timeUnit,
+					   ExecutorService taskExecutor, Time time, Scheduling scheduling) {
+		this(executorName, tick, wheelSize, start, timeUnit, taskExecutor, time, scheduling, null);
+	}
+
+	/**
+	 * @param tuner 为 null 时 tick / wheelSize 固定不变;
+	 *              否则重建时间轮需要在写锁内把所有任务重新插入, 期间 add 被阻塞, 因此只在推荐值稳定且不同时进行
+	 */
+	public SystemTimer(String executorName, long tick, int wheelSize, long start, TimeUnit timeUnit,
+					   ExecutorService taskExecutor, Time time, Scheduling scheduling, GeometryTuner tuner) {
+		this.taskExecutor = taskExecutor;
+		this.time = time;
+		this.timeUnit = timeUnit;
+		this.scheduling = scheduling;
+		this.taskCounter = new LongAdder();
+		this.tuner = tuner;
+		this.delayQueue = scheduling == Scheduling.DELAY_QUEUE ? new DelayQueue<TimerTaskList>() : null;
+		this.timingWheel = newTimingWheel(tick, wheelSize, start);
+		this.metrics = new TimerMetrics(this);
+		this.metricsName = JmxRegistry.objectName("com.cc.common.utils.timer", "SystemTimer", executorName);
+		JmxRegistry.register(metricsName, metrics);
+	}
+
+	private TimingWheel newTimingWheel(long tick, int wheelSize, long start) {
+		if (scheduling == Scheduling.DELAY_QUEUE)
+			return new TimingWheel(tick,wheelSize,start,taskCounter,delayQueue,time,timeUnit);
+		return new TimingWheel(tick,wheelSize,start,taskCounter,time,timeUnit,this::onBucketScheduled);
+	}
+
+	private static ExecutorService newTaskExecutor(String executorName) {
+		return Executors.newFixedThreadPool(1, runnable ->
 				SchedulerThread.nonDaemon("executor-" + executorName, runnable)
 		);
-		this.delayQueue = new DelayQueue<TimerTaskList>();
-		this.taskCounter = new AtomicInteger(0);
-		this.timingWheel = new TimingWheel(tickMs,wheelSize,startMs,taskCounter,this.delayQueue);
 	}
 
 	@Override
 	public void add(TimerTask timerTask) {
+		if (tuner != null)
+			tuner.sample(timerTask.delay(timeUnit));
+		readLock.lock();
+		try {
+			addTimerTaskEntry(timerTask.acquireEntry(timerTask.delay(timeUnit) + time.hiResClock(timeUnit)));
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	// 整批任务只获取一次读锁、只读取一次时钟, 落入同一个 bucket 的任务一次性插入
+	@Override
+	public void addAll(Collection<? extends TimerTask> timerTasks) {
 		readLock.lock();
 		try {
-			addTimerTaskEntry(new TimerTaskEntry(timerTask, timerTask.delayMs() + Time.SYSTEM.hiResClockMs()));
+			long now = time.hiResClock(timeUnit);
+			List<TimerTaskEntry> entries = new ArrayList<>(timerTasks.size());
+			for (TimerTask timerTask : timerTasks)
+				entries.add(timerTask.acquireEntry(timerTask.delay(timeUnit) + now));
+			List<TimerTaskEntry> notAdded = new ArrayList<>();
+			timingWheel.addAll(entries, notAdded);
+			for (TimerTaskEntry timerTaskEntry : notAdded)
+				expire(timerTaskEntry);
 		} finally {
 			readLock.unlock();
 		}
+		if (tuner != null) {
+			for (TimerTask timerTask : timerTasks)
+				tuner.sample(timerTask.delay(timeUnit));
+		}
 	}
 
 	private void addTimerTaskEntry(TimerTaskEntry timerTaskEntry) {
-		if (!timingWheel.add(timerTaskEntry)) {
-			if (!timerTaskEntry.cancel())
-				taskExecutor.submit(timerTaskEntry.timerTask());
+		if (!timingWheel.add(timerTaskEntry))
+			expire(timerTaskEntry);
+	}
+
+	// 已经过期 (或已取消) 的任务: 未取消的交给 taskExecutor 执行, entry 在执行前释放; 已取消的直接释放
+	private void expire(TimerTaskEntry timerTaskEntry) {
+		if (!timerTaskEntry.cancel()) {
+			metrics.expired.mark();
+			taskExecutor.execute(timerTaskEntry);
+		} else {
+			timerTaskEntry.release();
 		}
 	}
 
 	@Override
 	public boolean advanceClock(long timeoutMs) {
+		if (scheduling == Scheduling.WHEEL_CURSOR)
+			return advanceCursor(timeoutMs);
 		try {
-			TimerTaskList bucket = delayQueue.poll(1000, TimeUnit.MILLISECONDS);
+			TimerTaskList bucket = delayQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+			// 被 wakeup 唤醒: 只处理已经到期的 bucket, 不再等待
+			if (bucket == wakeupBucket)
+				bucket = delayQueue.poll();
 			if (bucket != null) {
 				writeLock.lock();
+				long lockedNs = System.nanoTime();
 				try {
 					while (bucket != null) {
+						if (bucket == wakeupBucket) {
+							bucket = delayQueue.poll();
+							continue;
+						}
+						long expiration = bucket.getExpiration();
+						metrics.firingLagMs.record(timeUnit.toMillis(time.hiResClock(timeUnit) - expiration));
 						// 向前推动时间轮
-						timingWheel.advanceClock(bucket.getExpiration());
+						timingWheel.advanceClock(expiration);
 						// 删除 bucket 里的 TimerTask， 并执行 run
-						bucket.flush(timerTaskEntry->addTimerTaskEntry(timerTaskEntry));
+						int flushed = bucket.flush(timerTaskEntry->addTimerTaskEntry(timerTaskEntry));
+						// 高层 bucket 的 entry 被重新插入到低层, 即 cascade
+						if (bucket.level() > 0)
+							metrics.recordCascade(bucket.level(), flushed);
 						bucket = delayQueue.poll();
 					}
 				} finally {
+					metrics.writeLockHoldUs.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - lockedNs));
 					writeLock.unlock();
 				}
+				// 在锁外回收被取消的 entry, 不阻塞 add
+				timingWheel.compact();
+				maybeRetune();
 				return true;
 			}
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			error("Interrupted while advancing the timer clock", e);
 		}
 		return false;
 	}
 
+	private boolean advanceCursor(long timeoutMs) {
+		long now = time.hiResClock(timeUnit);
+		long next = timingWheel.nextExpiration();
+		// 等待的上限按真实时间计算, 与 DelayQueue.poll(timeout) 一致 (time 可能是不会自行前进的 MockTime)
+		long remainingNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		long deadlineNs = System.nanoTime() + remainingNs;
+		while (next > now && remainingNs > 0 && !wakeupRequested) {
+			reaper = Thread.currentThread();
+			wakeupTime = next;
+			// 发布 wakeupTime 与 reaper 之后再检查一次, 避免错过期间调度的更早的 bucket 或 wakeup
+			if (!wakeupRequested && timingWheel.nextExpiration() >= next)
+				LockSupport.parkNanos(this, Math.min(remainingNs, timeUnit.toNanos(next - now)));
+			wakeupTime = Long.MIN_VALUE;
+			if (Thread.currentThread().isInterrupted())
+				break;
+			now = time.hiResClock(timeUnit);
+			next = timingWheel.nextExpiration();
+			remainingNs = deadlineNs - System.nanoTime();
+		}
+		wakeupRequested = false;
+		TimerTaskList bucket;
+		writeLock.lock();
+		long lockedNs = System.nanoTime();
+		boolean flushed = false;
+		try {
+			while ((bucket = timingWheel.pollExpired(now)) != null) {
+				flushed = true;
+				long expiration = bucket.getExpiration();
+				metrics.firingLagMs.record(timeUnit.toMillis(now - expiration));
+				timingWheel.advanceClock(expiration);
+				int entries = bucket.flush(timerTaskEntry->addTimerTaskEntry(timerTaskEntry));
+				if (bucket.level() > 0)
+					metrics.recordCascade(bucket.level(), entries);
+			}
+		} finally {
+			if (flushed)
+				metrics.writeLockHoldUs.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - lockedNs));
+			writeLock.unlock();
+		}
+		if (flushed) {
+			timingWheel.compact();
+			maybeRetune();
+		}
+		return flushed;
+	}
+
+	// 由 reaper 调用: 以 tuner 推荐的 geometry 新建时间轮, 把旧时间轮中的任务全部重新插入
+	private void maybeRetune() {
+		if (tuner == null)
+			return;
+		TimingWheel current = timingWheel;
+		GeometryTuner.Geometry geometry = tuner.recommend(current.tick(), current.wheelSize());
+		if (geometry == null)
+			return;
+		int moved;
+		writeLock.lock();
+		long lockedNs = System.nanoTime();
+		try {
+			// 旧时间轮的 bucket 不再调度; wakeupBucket 保留, 以免丢失 wakeup
+			if (delayQueue != null)
+				delayQueue.removeIf(bucket -> bucket != wakeupBucket);
+			timingWheel = newTimingWheel(geometry.tick(), geometry.wheelSize(), time.hiResClock(timeUnit));
+			moved = current.flushAll(timerTaskEntry->addTimerTaskEntry(timerTaskEntry));
+		} finally {
+			metrics.writeLockHoldUs.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - lockedNs));
+			writeLock.unlock();
+		}
+		metrics.geometryChanges.increment();
+		info(String.format("Timing wheel geometry changed from tick %d, wheelSize %d to %s, moved %d tasks",
+				current.tick(), current.wheelSize(), geometry, moved));
+	}
+
+	// 由 add 的线程调用: 新调度的 bucket 早于 reaper 的唤醒时间时提前唤醒它
+	private void onBucketScheduled(long expiration) {
+		if (expiration < wakeupTime) {
+			Thread thread = reaper;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void wakeup() {
+		if (scheduling == Scheduling.WHEEL_CURSOR) {
+			wakeupRequested = true;
+			Thread thread = reaper;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		} else {
+			wakeupBucket.setExpiration(0L);
+			delayQueue.offer(wakeupBucket);
+		}
+	}
+
+	@Override
+	public boolean supportsWakeup() {
+		return true;
+	}
+
 	@Override
 	public int size() {
-		return taskCounter.get();
+		return (int) taskCounter.sum();
+	}
+
+	@Override
+	public int expirationQueueDepth() {
+		if (taskExecutor instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor) taskExecutor).getQueue().size();
+		if (taskExecutor instanceof LaneExecutor)
+			return ((LaneExecutor) taskExecutor).queued();
+		return -1;
+	}
+
+	public int levels() {
+		return timingWheel.levels();
+	}
+
+	public long tick() {
+		return timingWheel.tick();
+	}
+
+	public int wheelSize() {
+		return timingWheel.wheelSize();
+	}
+
+	public GeometryTuner tuner() {
+		return tuner;
+	}
+
+	public long[] occupancy() {
+		return timingWheel.occupancy();
+	}
+
+	public TimerMetrics metrics() {
+		return metrics;
 	}
 
 	@Override
 	public void shutdown() {
 		taskExecutor.shutdown();
+		JmxRegistry.unregister(metricsName);
 	}
 }
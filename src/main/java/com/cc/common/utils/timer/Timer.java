@@ -2,6 +2,8 @@ package com.cc.common.utils.timer;
 
 import com.cc.common.utils.Logging;
 
+import java.util.Collection;
+
 /**
  * User: chenchong
  * Date: 2019/1/21
@@ -16,6 +18,16 @@ public interface Timer {
 	 */
 	void add(TimerTask timerTask);
 
+	/**
+	 * Add a batch of tasks. Equivalent to calling {@link #add(TimerTask)} for each task,
+	 * implementations may amortize locking and clock reads across the batch.
+	 * @param timerTasks the tasks to add
+	 */
+	default void addAll(Collection<? extends TimerTask> timerTasks) {
+		for (TimerTask timerTask : timerTasks)
+			add(timerTask);
+	}
+
 	/**
 	 * Advance the internal clock, executing any tasks whose expiration has been
 	 * reached within the duration of the passed timeout.
@@ -24,12 +36,38 @@ public interface Timer {
 	 */
 	boolean advanceClock(long timeoutMs);
 
+	/**
+	 * Wake up the thread blocked in {@link #advanceClock(long)}, which then returns promptly
+	 * (possibly after executing tasks that are already due). Lets a reaper wait with an unbounded
+	 * timeout and still be stopped. A wakeup requested while no thread is waiting is not lost,
+	 * the next advanceClock call returns without waiting. Only honoured when {@link #supportsWakeup()}.
+	 */
+	default void wakeup() {
+	}
+
+	/**
+	 * Whether {@link #wakeup()} really interrupts a blocked {@link #advanceClock(long)}. Callers must
+	 * not wait with an unbounded timeout on a timer that doesn't support it.
+	 * @return false unless the implementation overrides wakeup
+	 */
+	default boolean supportsWakeup() {
+		return false;
+	}
+
 	/**
 	 * Get the number of tasks pending execution
 	 * @return the number of tasks
 	 */
 	int size();
 
+	/**
+	 * Get the number of expired tasks waiting to be run
+	 * @return the queue depth, or -1 if the timer doesn't track it
+	 */
+	default int expirationQueueDepth() {
+		return -1;
+	}
+
 	/**
 	 * Shutdown the timer service, leaving pending tasks unexecuted
 	 */
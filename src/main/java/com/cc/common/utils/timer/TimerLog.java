@@ -0,0 +1,624 @@
+package com.cc.common.utils.timer;
+
+import com.cc.common.utils.SchedulerThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	DurableTimer 的预写日志: 分段、内存映射, 后台线程批量 force (group commit) 并合并旧的 segment
+ *
+ * 记录格式: crc(4) | type(1) | id(8) | deadlineMs(8) | length(4) | payload(length), crc 覆盖 crc 之后的所有字节。
+ * segment 以文件中第一个记录的 lsn (全局的字节偏移) 命名, 新建时预分配 segmentBytes 并映射, 全零的尾部即日志的结尾。
+ * 每次打开都从一个新的 segment 开始追加, 已有的 segment 全部视为封存, 只读。
+ *
+ * 按 id 折叠日志: SCHEDULE 覆盖该 id 之前的记录, CANCEL / COMPLETE 删除它。合并把封存的 segment (总是日志的一个前缀)
+ * 折叠成只含 SCHEDULE 的一个文件, 以第一个 segment 的名字原子地替换它, 再删除其余的 segment;
+ * 替换之后、删除之前崩溃时, 剩余的 segment 在恢复时重复应用, 折叠的结果不变。
+ */
+class TimerLog implements Closeable {
+
+	private final static Logger log = LoggerFactory.getLogger(TimerLog.class);
+
+	final static byte SCHEDULE = 1;
+	final static byte CANCEL = 2;
+	final static byte COMPLETE = 3;
+	final static byte[] EMPTY = new byte[0];
+
+	final static int HEADER_BYTES = 4 + 1 + 8 + 8 + 4;
+	private final static String SUFFIX = ".log";
+	private final static String COMPACTING_SUFFIX = ".compacting";
+	private final static int IO_BUFFER_BYTES = 1024 * 1024;
+
+	private final File dir;
+	private final int segmentBytes;
+	private final long flushIntervalMs;
+	private final int compactSegments;
+
+	// 封存的 segment, 按 base lsn 排序; 由 roll 加入, 由合并替换
+	private final ConcurrentSkipListMap<Long, File> sealed = new ConcurrentSkipListMap<>();
+
+	// 以下字段只在 appendLock 内访问
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private final CRC32 crc = new CRC32();
+	private MappedByteBuffer active;
+	// active 的另一个视图, 计算 crc 时设置其 position / limit, 避免每次 append 都 duplicate
+	private ByteBuffer activeView;
+	private long activeBase;
+	// 已经 roll 但还没有 force 的 segment
+	private final List<MappedByteBuffer> unflushed = new ArrayList<>();
+	private volatile long appendedLsn;
+	// 只由 flusher (以及 close 中最后一次 flush) 修改
+	private volatile long flushedLsn;
+	private volatile boolean closed = false;
+
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final Condition flushRequested = flushLock.newCondition();
+	private final Condition flushCompleted = flushLock.newCondition();
+	private boolean flushPending = false;
+
+	private final Semaphore compactionRequests = new Semaphore(0);
+	private final Thread flusher;
+	private final Thread compactor;
+
+	private final LongAdder appends = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder compactions = new LongAdder();
+
+	/**
+	 * @param segmentBytes 每个 segment 预分配的大小, 也是单个记录的上限
+	 * @param flushIntervalMs 没有等待者时 force 的间隔, 即异步提交时最多丢失的时间范围
+	 * @param compactSegments 封存的 segment 达到这个个数时在后台合并
+	 */
+	TimerLog(File dir, int segmentBytes, long flushIntervalMs, int compactSegments) throws IOException {
+		if (segmentBytes <= HEADER_BYTES)
+			throw new IllegalArgumentException("segmentBytes must be larger than " + HEADER_BYTES + ": " + segmentBytes);
+		if (compactSegments < 2)
+			throw new IllegalArgumentException("compactSegments must be at least 2: " + compactSegments);
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.flushIntervalMs = flushIntervalMs;
+		this.compactSegments = compactSegments;
+
+		Files.createDirectories(dir.toPath());
+		long nextBase = 0L;
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.endsWith(COMPACTING_SUFFIX)) {
+				// 合并在替换之前中断, 原来的 segment 都还在
+				Files.delete(file.toPath());
+			} else if (name.endsWith(SUFFIX)) {
+				long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				sealed.put(base, file);
+				nextBase = Math.max(nextBase, base + file.length());
+			}
+		}
+		this.activeBase = nextBase;
+		this.active = map(nextBase);
+		this.activeView = active.duplicate();
+		syncDirectory();
+		this.appendedLsn = nextBase;
+		this.flushedLsn = nextBase;
+
+		this.flusher = SchedulerThread.daemon("timer-log-flusher-" + dir.getName(), this::flushLoop);
+		this.compactor = SchedulerThread.daemon("timer-log-compactor-" + dir.getName(), this::compactLoop);
+		flusher.start();
+		compactor.start();
+	}
+
+	private MappedByteBuffer map(long base) throws IOException {
+		File file = segmentFile(base);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(segmentBytes);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		}
+	}
+
+	private File segmentFile(long base) {
+		return new File(dir, String.format("%020d%s", base, SUFFIX));
+	}
+
+	/**
+	 * 按顺序读取打开时已有的 segment, 折叠出仍然有效的 SCHEDULE; 在第一次 append 之前调用
+	 */
+	LiveSet replay() throws IOException {
+		LiveSet live = new LiveSet(1 << 16);
+		for (File file : sealed.values())
+			read(file, live);
+		if (sealed.size() >= compactSegments)
+			compactionRequests.release();
+		return live;
+	}
+
+	/**
+	 * 追加一个记录, 不等待写入磁盘
+	 * @return 记录结尾的 lsn, 供 awaitFlush 使用; 日志已关闭时返回 -1
+	 */
+	long append(byte type, long id, long deadlineMs, byte[] payload) {
+		checkSize(payload);
+		appendLock.lock();
+		try {
+			if (closed)
+				return -1L;
+			write(type, id, deadlineMs, payload);
+			return appendedLsn;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	// 整批 SCHEDULE 只获取一次锁
+	long appendSchedules(List<DurableTimerTask> tasks, long[] deadlines) {
+		for (DurableTimerTask task : tasks)
+			checkSize(task.payload());
+		appendLock.lock();
+		try {
+			if (closed)
+				return -1L;
+			for (int i = 0; i < tasks.size(); i++)
+				write(SCHEDULE, tasks.get(i).id(), deadlines[i], tasks.get(i).payload());
+			return appendedLsn;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	private void checkSize(byte[] payload) {
+		if (HEADER_BYTES + payload.length > segmentBytes)
+			throw new IllegalArgumentException("Payload of " + payload.length + " bytes doesn't fit in a segment of "
+					+ segmentBytes + " bytes");
+	}
+
+	private void write(byte type, long id, long deadlineMs, byte[] payload) {
+		int size = HEADER_BYTES + payload.length;
+		if (active.remaining() < size)
+			roll();
+		int start = active.position();
+		active.position(start + 4);
+		active.put(type);
+		active.putLong(id);
+		active.putLong(deadlineMs);
+		active.putInt(payload.length);
+		active.put(payload);
+		activeView.limit(start + size);
+		activeView.position(start + 4);
+		crc.reset();
+		crc.update(activeView);
+		// crc 最后写入: 没有写完的记录校验失败, 恢复时在此截断
+		active.putInt(start, (int) crc.getValue());
+		appendedLsn = activeBase + active.position();
+		appends.increment();
+	}
+
+	// 在 appendLock 内调用: 封存当前 segment, 由 flusher 在下一次 flush 时 force
+	private void roll() {
+		long base = activeBase + active.position();
+		MappedByteBuffer next;
+		try {
+			next = map(base);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to roll timer log " + dir, e);
+		}
+		unflushed.add(active);
+		sealed.put(activeBase, segmentFile(activeBase));
+		activeBase = base;
+		active = next;
+		activeView = next.duplicate();
+		if (sealed.size() >= compactSegments)
+			compactionRequests.release();
+	}
+
+	/**
+	 * 等待 lsn 之前的记录写入磁盘; 并发的等待者共用同一次 force
+	 */
+	void awaitFlush(long lsn) {
+		flushLock.lock();
+		try {
+			while (flushedLsn < lsn && flusher.isAlive()) {
+				flushPending = true;
+				flushRequested.signal();
+				flushCompleted.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void flushLoop() {
+		while (!closed) {
+			flushLock.lock();
+			try {
+				if (!flushPending)
+					flushRequested.await(flushIntervalMs, TimeUnit.MILLISECONDS);
+				flushPending = false;
+			} catch (InterruptedException e) {
+				// close 中断了 flusher: 恢复中断标记后退出
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				flushLock.unlock();
+			}
+			flush();
+		}
+	}
+
+	// 把当前 appendedLsn 之前的记录写入磁盘, 期间追加的记录留给下一次
+	private void flush() {
+		long target;
+		List<MappedByteBuffer> buffers;
+		boolean rolled;
+		appendLock.lock();
+		try {
+			target = appendedLsn;
+			buffers = new ArrayList<>(unflushed.size() + 1);
+			buffers.addAll(unflushed);
+			buffers.add(active);
+			rolled = !unflushed.isEmpty();
+			unflushed.clear();
+		} finally {
+			appendLock.unlock();
+		}
+		if (target > flushedLsn) {
+			for (MappedByteBuffer buffer : buffers)
+				buffer.force();
+			// roll 新建了 segment, 它的目录项也要写入磁盘
+			if (rolled) {
+				try {
+					syncDirectory();
+				} catch (IOException e) {
+					log.error("Failed to sync timer log directory {}", dir, e);
+				}
+			}
+			flushes.increment();
+		}
+		flushLock.lock();
+		try {
+			flushedLsn = target;
+			flushCompleted.signalAll();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void compactLoop() {
+		try {
+			while (true) {
+				compactionRequests.acquire();
+				if (closed)
+					return;
+				if (sealed.size() < compactSegments)
+					continue;
+				try {
+					compact();
+				} catch (IOException | RuntimeException e) {
+					log.error("Failed to compact timer log {}", dir, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			// close 中断了 compactor: 恢复中断标记后退出
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// 把当前所有封存的 segment 合并为一个
+	void compact() throws IOException {
+		List<Map.Entry<Long, File>> segments = new ArrayList<>(sealed.entrySet());
+		if (segments.size() < 2)
+			return;
+		LiveSet live = new LiveSet(1 << 16);
+		for (Map.Entry<Long, File> segment : segments)
+			read(segment.getValue(), live);
+
+		File target = segments.get(0).getValue();
+		File compacting = new File(dir, target.getName() + COMPACTING_SUFFIX);
+		try (FileChannel channel = FileChannel.open(compacting.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_BYTES);
+			CRC32 checksum = new CRC32();
+			live.forEach((type, id, deadlineMs, payload) -> {
+				int size = HEADER_BYTES + payload.length;
+				ByteBuffer out = buffer;
+				if (out.remaining() < size) {
+					drain(channel, out);
+					if (out.capacity() < size)
+						out = ByteBuffer.allocate(size);
+				}
+				int start = out.position();
+				out.position(start + 4);
+				out.put(type);
+				out.putLong(id);
+				out.putLong(deadlineMs);
+				out.putInt(payload.length);
+				out.put(payload);
+				checksum.reset();
+				checksum.update(out.array(), out.arrayOffset() + start + 4, size - 4);
+				out.putInt(start, (int) checksum.getValue());
+				if (out != buffer)
+					drain(channel, out);
+			});
+			drain(channel, buffer);
+			channel.force(true);
+		}
+		Files.move(compacting.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		// 先让替换持久化, 再删除其余的 segment: 崩溃后不会既丢失替换又丢失被删除的 segment
+		syncDirectory();
+		for (int i = 1; i < segments.size(); i++) {
+			Files.deleteIfExists(segments.get(i).getValue().toPath());
+			sealed.remove(segments.get(i).getKey());
+		}
+		syncDirectory();
+		compactions.increment();
+		log.info("Compacted {} timer log segments in {} into {} live timers", segments.size(), dir, live.size());
+	}
+
+	// rename / 新建 / 删除文件只修改目录, force 目录才能保证崩溃后这些修改仍然可见
+	private void syncDirectory() throws IOException {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer) {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * 按顺序把 file 中的记录交给 visitor, 遇到全零的尾部、文件结尾或校验失败的记录时停止
+	 * @return 读到的记录个数
+	 */
+	static int read(File file, RecordVisitor visitor) throws IOException {
+		CRC32 checksum = new CRC32();
+		int records = 0;
+		long offset = 0L;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_BYTES);
+			buffer.flip();
+			while ((buffer = fill(channel, buffer, HEADER_BYTES)) != null) {
+				int start = buffer.position();
+				byte type = buffer.get(start + 4);
+				if (type == 0)
+					break;
+				int length = buffer.getInt(start + 21);
+				// 写了一半的记录头中 length 可能是任意值: 超出文件剩余字节的记录同样视为日志的结尾
+				if (type < SCHEDULE || type > COMPLETE || length < 0 || length > Integer.MAX_VALUE - HEADER_BYTES
+						|| length > channel.size() - offset - HEADER_BYTES) {
+					log.warn("Invalid timer log record at {} in {}, ignoring the rest of the file", offset, file);
+					break;
+				}
+				int size = HEADER_BYTES + length;
+				if ((buffer = fill(channel, buffer, size)) == null) {
+					log.warn("Truncated timer log record at {} in {}", offset, file);
+					break;
+				}
+				start = buffer.position();
+				checksum.reset();
+				checksum.update(buffer.array(), buffer.arrayOffset() + start + 4, size - 4);
+				if ((int) checksum.getValue() != buffer.getInt(start)) {
+					log.warn("Corrupt timer log record at {} in {}, ignoring the rest of the file", offset, file);
+					break;
+				}
+				byte[] payload = length == 0 ? EMPTY : new byte[length];
+				buffer.position(start + HEADER_BYTES);
+				buffer.get(payload);
+				visitor.visit(type, buffer.getLong(start + 5), buffer.getLong(start + 13), payload);
+				records += 1;
+				offset += size;
+			}
+		}
+		return records;
+	}
+
+	// 保证 buffer 中至少有 n 个可读的字节, 必要时换成更大的 buffer; 文件中剩余的字节不足时返回 null
+	private static ByteBuffer fill(FileChannel channel, ByteBuffer buffer, int n) throws IOException {
+		if (buffer.remaining() >= n)
+			return buffer;
+		if (buffer.capacity() < n) {
+			ByteBuffer larger = ByteBuffer.allocate(n);
+			larger.put(buffer);
+			larger.flip();
+			buffer = larger;
+		}
+		buffer.compact();
+		try {
+			while (buffer.position() < n) {
+				if (channel.read(buffer) < 0)
+					return null;
+			}
+		} finally {
+			buffer.flip();
+		}
+		return buffer;
+	}
+
+	int segments() {
+		return sealed.size() + 1;
+	}
+
+	long appends() {
+		return appends.sum();
+	}
+
+	long flushes() {
+		return flushes.sum();
+	}
+
+	long compactions() {
+		return compactions.sum();
+	}
+
+	// 停止追加与后台线程, 把剩余的记录写入磁盘; 正在进行的合并会先完成
+	@Override
+	public void close() throws IOException {
+		appendLock.lock();
+		try {
+			closed = true;
+		} finally {
+			appendLock.unlock();
+		}
+		flushLock.lock();
+		try {
+			flushRequested.signal();
+		} finally {
+			flushLock.unlock();
+		}
+		compactionRequests.release();
+		try {
+			flusher.join();
+			compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		// 没有追加过记录的 segment 不必保留
+		if (appendedLsn == activeBase)
+			Files.deleteIfExists(segmentFile(activeBase).toPath());
+	}
+
+	interface RecordVisitor {
+		void visit(byte type, long id, long deadlineMs, byte[] payload);
+	}
+
+	/**
+	 * 按 id 折叠的记录: SCHEDULE 覆盖之前的状态, CANCEL / COMPLETE 删除;
+	 * 以线性探测的并行数组存储, 恢复上千万个定时器时不为每个 id 分配 Long 与 Map.Entry
+	 */
+	static class LiveSet implements RecordVisitor {
+
+		private long[] ids;
+		private long[] deadlines;
+		// 为 null 表示空槽, 没有 payload 的定时器使用 EMPTY
+		private byte[][] payloads;
+		private int mask;
+		private int size = 0;
+
+		LiveSet(int initialCapacity) {
+			int capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			ids = new long[capacity];
+			deadlines = new long[capacity];
+			payloads = new byte[capacity][];
+			mask = capacity - 1;
+		}
+
+		@Override
+		public void visit(byte type, long id, long deadlineMs, byte[] payload) {
+			if (type == SCHEDULE)
+				put(id, deadlineMs, payload);
+			else
+				remove(id);
+		}
+
+		private int slot(long id) {
+			long h = id * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+
+		void put(long id, long deadlineMs, byte[] payload) {
+			if ((size + 1) * 2 > payloads.length)
+				resize();
+			int i = slot(id);
+			while (payloads[i] != null) {
+				if (ids[i] == id) {
+					deadlines[i] = deadlineMs;
+					payloads[i] = payload;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			ids[i] = id;
+			deadlines[i] = deadlineMs;
+			payloads[i] = payload;
+			size += 1;
+		}
+
+		void remove(long id) {
+			int i = slot(id);
+			while (payloads[i] != null) {
+				if (ids[i] == id) {
+					delete(i);
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		// 删除后把同一探测链上后面的元素前移填补空槽 (backward shift), 不留墓碑
+		private void delete(int hole) {
+			size -= 1;
+			int i = hole;
+			while (true) {
+				i = (i + 1) & mask;
+				if (payloads[i] == null)
+					break;
+				int home = slot(ids[i]);
+				// home 不在 (hole, i] 之间时, 元素移到 hole 后仍然能从 home 探测到
+				if (((i - home) & mask) >= ((i - hole) & mask)) {
+					ids[hole] = ids[i];
+					deadlines[hole] = deadlines[i];
+					payloads[hole] = payloads[i];
+					hole = i;
+				}
+			}
+			payloads[hole] = null;
+		}
+
+		private void resize() {
+			long[] oldIds = ids;
+			long[] oldDeadlines = deadlines;
+			byte[][] oldPayloads = payloads;
+			allocate(oldPayloads.length * 2);
+			size = 0;
+			for (int i = 0; i < oldPayloads.length; i++) {
+				if (oldPayloads[i] != null)
+					put(oldIds[i], oldDeadlines[i], oldPayloads[i]);
+			}
+		}
+
+		void forEach(RecordVisitor visitor) {
+			for (int i = 0; i < payloads.length; i++) {
+				if (payloads[i] != null)
+					visitor.visit(SCHEDULE, ids[i], deadlines[i], payloads[i]);
+			}
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.cc.common.utils.timer;
+
+import com.cc.common.metrics.Histogram;
+import com.cc.common.metrics.Meter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	SystemTimer 的统计
+ *
+ * firingLag / writeLockHold / cascade 都在 advanceClock 中记录, 不影响 add 的路径;
+ * 层级与 bucket 占用只在读取时遍历时间轮计算。
+ */
+public class TimerMetrics implements TimerMetricsMBean {
+
+	// tickMs 为 1 时 long 范围内的时间轮最多 64 层
+	private final static int MAX_LEVELS = 64;
+
+	private final SystemTimer timer;
+	final Meter expired = new Meter();
+	final Histogram firingLagMs = new Histogram();
+	final Histogram writeLockHoldUs = new Histogram();
+	final LongAdder geometryChanges = new LongAdder();
+	private final AtomicLongArray cascaded = new AtomicLongArray(MAX_LEVELS);
+
+	TimerMetrics(SystemTimer timer) {
+		this.timer = timer;
+	}
+
+	void recordCascade(int level, int entries) {
+		cascaded.addAndGet(Math.min(level, MAX_LEVELS - 1), entries);
+	}
+
+	public Histogram firingLagMs() {
+		return firingLagMs;
+	}
+
+	public Histogram writeLockHoldUs() {
+		return writeLockHoldUs;
+	}
+
+	@Override
+	public int getSize() {
+		return timer.size();
+	}
+
+	@Override
+	public long getExpiredCount() {
+		return expired.count();
+	}
+
+	@Override
+	public double getExpiredRate() {
+		return expired.oneMinuteRate();
+	}
+
+	@Override
+	public int getExpirationQueueDepth() {
+		return timer.expirationQueueDepth();
+	}
+
+	@Override
+	public long getFiringLagP50Ms() {
+		return firingLagMs.percentile(0.5);
+	}
+
+	@Override
+	public long getFiringLagP99Ms() {
+		return firingLagMs.percentile(0.99);
+	}
+
+	@Override
+	public long getFiringLagMaxMs() {
+		return firingLagMs.max();
+	}
+
+	@Override
+	public long getWriteLockHoldP99Us() {
+		return writeLockHoldUs.percentile(0.99);
+	}
+
+	@Override
+	public long getWriteLockHoldMaxUs() {
+		return writeLockHoldUs.max();
+	}
+
+	@Override
+	public int getLevels() {
+		return timer.levels();
+	}
+
+	@Override
+	public long[] getBucketOccupancy() {
+		return timer.occupancy();
+	}
+
+	@Override
+	public long getTick() {
+		return timer.tick();
+	}
+
+	@Override
+	public int getWheelSize() {
+		return timer.wheelSize();
+	}
+
+	@Override
+	public long getGeometryChanges() {
+		return geometryChanges.sum();
+	}
+
+	@Override
+	public String getRecommendedGeometry() {
+		GeometryTuner tuner = timer.tuner();
+		GeometryTuner.Geometry geometry = tuner == null ? null : tuner.lastRecommendation();
+		return geometry == null ? "" : geometry.toString();
+	}
+
+	@Override
+	public long[] getCascadedEntries() {
+		int levels = timer.levels();
+		long[] entries = new long[levels];
+		for (int i = 0; i < levels && i < MAX_LEVELS; i++)
+			entries[i] = cascaded.get(i);
+		return entries;
+	}
+}
@@ -0,0 +1,71 @@
+package com.cc.common.utils.timer;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	SystemTimer 的 JMX 视图
+ */
+public interface TimerMetricsMBean {
+
+	/**
+	 * Tasks pending in the timing wheel.
+	 */
+	int getSize();
+
+	/**
+	 * Tasks handed to the task executor after reaching their expiration.
+	 */
+	long getExpiredCount();
+
+	double getExpiredRate();
+
+	int getExpirationQueueDepth();
+
+	/**
+	 * Delay between a bucket's expiration and advanceClock flushing it, in milliseconds.
+	 */
+	long getFiringLagP50Ms();
+
+	long getFiringLagP99Ms();
+
+	long getFiringLagMaxMs();
+
+	/**
+	 * Time advanceClock holds the write lock per call, in microseconds.
+	 */
+	long getWriteLockHoldP99Us();
+
+	long getWriteLockHoldMaxUs();
+
+	/**
+	 * Number of timing wheel levels, including overflow wheels created so far.
+	 */
+	int getLevels();
+
+	/**
+	 * Entries currently held by the buckets of each level, index 0 is the lowest level.
+	 */
+	long[] getBucketOccupancy();
+
+	/**
+	 * Tick of the lowest level, in the timer's time unit.
+	 */
+	long getTick();
+
+	int getWheelSize();
+
+	/**
+	 * Times the wheel was rebuilt with a geometry recommended by the GeometryTuner.
+	 */
+	long getGeometryChanges();
+
+	/**
+	 * The tuner's recommendation from the latest full sample window, empty without a tuner or before one.
+	 */
+	String getRecommendedGeometry();
+
+	/**
+	 * Entries moved down from each level by expired overflow buckets, index 0 is always 0.
+	 */
+	long[] getCascadedEntries();
+}
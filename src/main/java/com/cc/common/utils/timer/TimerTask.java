@@ -10,8 +10,14 @@ import java.util.concurrent.TimeUnit;
 public abstract class TimerTask implements Runnable {
 
 	private TimerTaskEntry timerTaskEntry = null;
+	// 最近一次分配的 entry, 时间轮不再使用它之后由下一次 add 复用
+	private TimerTaskEntry reusableEntry = null;
 	// TimeUnit.MILLISECONDS
 	protected long delayMs;
+	// 通过 setDelay 设置的纳秒延迟, 供亚毫秒精度的时间轮使用; 子类直接修改 delayMs 后不再与之一致, 随即失效
+	private long delayNs = -1L;
+	// 到期后在 LaneExecutor 中所在的 lane, 其它 taskExecutor 忽略
+	protected Priority priority = Priority.NORMAL;
 
 	public void cancel() {
 		synchronized (this) {
@@ -29,6 +35,20 @@ public abstract class TimerTask implements Runnable {
 		}
 	}
 
+	// 由 Timer 在 add 时调用: 优先复用空闲的 entry, 否则分配新的 entry
+	TimerTaskEntry acquireEntry(long expirationMs) {
+		synchronized (this) {
+			TimerTaskEntry entry = reusableEntry;
+			if (entry != null && entry.tryAcquire(expirationMs)) {
+				setTimerTaskEntry(entry);
+				return entry;
+			}
+			entry = new TimerTaskEntry(this, expirationMs);
+			reusableEntry = entry;
+			return entry;
+		}
+	}
+
 	public TimerTaskEntry getTimerTaskEntry() {
 		return timerTaskEntry;
 	}
@@ -37,4 +57,32 @@ public abstract class TimerTask implements Runnable {
 		return delayMs;
 	}
 
+	public Priority priority() {
+		return priority;
+	}
+
+	// delayMs 向上取整, 毫秒精度的时间轮不会让任务提前一个毫秒以上到期
+	protected void setDelay(long delay, TimeUnit unit) {
+		long ns = unit.toNanos(delay);
+		delayNs = ns;
+		delayMs = ceilMillis(ns);
+	}
+
+	/**
+	 * 以 unit 表示的延迟; 毫秒直接返回 delayMs, 更细的单位在 setDelay 设置过时保留其精度
+	 */
+	public long delay(TimeUnit unit) {
+		if (unit == TimeUnit.MILLISECONDS)
+			return delayMs;
+		long ns = delayNs;
+		if (ns >= 0 && ceilMillis(ns) == delayMs)
+			return unit.convert(ns, TimeUnit.NANOSECONDS);
+		return unit.convert(delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private static long ceilMillis(long ns) {
+		long ms = TimeUnit.NANOSECONDS.toMillis(ns);
+		return TimeUnit.MILLISECONDS.toNanos(ms) < ns ? ms + 1 : ms;
+	}
+
 }
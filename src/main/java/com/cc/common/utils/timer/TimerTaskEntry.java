@@ -1,19 +1,35 @@
 package com.cc.common.utils.timer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 /**
  * User: chenchong
  * Date: 2019/1/18
  * description:	 数据单元
+ *
+ * entry 嵌在 TimerTask 中复用 (见 TimerTask.acquireEntry), 稳定状态下 add 与到期执行都不分配对象:
+ *  busy 表示 entry 正被时间轮使用 (在某条链表中、正在 flush 或等待执行), 只有空闲的 entry 才能被复用;
+ *  entry 本身作为 Runnable 交给 taskExecutor, 避免 submit 为每次执行分配 FutureTask。
  */
-public class TimerTaskEntry {
+public class TimerTaskEntry implements Runnable {
+
+	private final static Logger log = LoggerFactory.getLogger(TimerTaskEntry.class);
+
+	// 所属的 bucket, 通过 LIST 以 CAS 修改; next 只由 TimerTaskList 维护
+	static final AtomicReferenceFieldUpdater<TimerTaskEntry, TimerTaskList> LIST =
+			AtomicReferenceFieldUpdater.newUpdater(TimerTaskEntry.class, TimerTaskList.class, "list");
 
-	public TimerTaskList list = null;
+	public volatile TimerTaskList list = null;
 	public TimerTaskEntry next = null;
-	public TimerTaskEntry prev = null;
 
 	private final TimerTask timerTask;
-	//  TimeUnit.MILLISECONDS = 当前时间 + delayMs
-	private final Long expirationMs;
+	//  TimeUnit.MILLISECONDS = 当前时间 + delayMs; 复用时在 TimerTask 的锁内重新设置
+	private long expirationMs;
+	// 新建的 entry 处于使用中, 由时间轮在不再引用它时释放
+	private volatile boolean busy = true;
 
 	public TimerTaskEntry(TimerTask timerTask, long expirationMs) {
 		this.expirationMs = expirationMs;
@@ -30,10 +46,24 @@ public class TimerTaskEntry {
 		return timerTask;
 	}
 
-	public Long expirationMs() {
+	public long expirationMs() {
 		return expirationMs;
 	}
 
+	// 只在 TimerTask 的锁内调用, 与 release 不会同时修改 busy
+	boolean tryAcquire(long expirationMs) {
+		if (busy)
+			return false;
+		busy = true;
+		this.expirationMs = expirationMs;
+		return true;
+	}
+
+	// 时间轮不再引用该 entry: 已从链表摘下且不会再被插入, 或即将执行
+	void release() {
+		busy = false;
+	}
+
 	public void remove() {
 		TimerTaskList currentList = list;
 		while (currentList != null) {
@@ -43,7 +73,18 @@ public class TimerTaskEntry {
 	}
 
 	public int compare(TimerTaskEntry entry) {
-		return this.expirationMs.compareTo(entry.expirationMs);
+		return Long.compare(this.expirationMs, entry.expirationMs);
+	}
+
+	// 到期后由 taskExecutor 执行; 先释放 entry, 任务在 run 中重新加入时可以直接复用
+	@Override
+	public void run() {
+		release();
+		try {
+			timerTask.run();
+		} catch (Throwable e) {
+			log.error("Timer task {} failed", timerTask, e);
+		}
 	}
 
 	@Override
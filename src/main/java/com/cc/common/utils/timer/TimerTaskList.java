@@ -1,92 +1,208 @@
 package com.cc.common.utils.timer;
 
 import com.cc.common.utils.Time;
-import com.cc.delayOperation.DelayPrint;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 /**
  * User: chenchong
  * Date: 2019/1/17
- * description:	数据存储的实现 ， 双向链表
+ * description:	数据存储的实现 , 无锁的单向链表 (Treiber stack)
  */
-public class TimerTaskList implements Delayed {
 
-	public final AtomicInteger taskCounter;
+/*
+ * entry 是否属于该 bucket 以 entry.list 为准 (逻辑上的归属), head 链表只是它的物理位置:
+ *  add:    CAS entry.list null -> this 取得归属, 再 CAS head 把 entry 压入链表, 不加锁
+ *  remove: CAS entry.list this -> null 即完成删除, entry 仍留在链表中, 记为 garbage
+ *  flush:  一次 getAndSet(head, null) 摘下整条链表, 跳过已删除的 entry, 其余的逐个取消归属后交给回调
+ *  compact: 已删除的 entry 过多时由 reaper 摘下链表, 只把仍属于该 bucket 的 entry 压回去
+ * flush 与 compact 只由 reaper 调用; 一个 entry 同一时刻只会在一条物理链表中 (新 entry 或 flush 摘下的 entry 才会被 add)。
+ */
+public class TimerTaskList implements Delayed {
 
-	private TimerTaskEntry root = new TimerTaskEntry(null, -1);
+	// 已删除的 entry 至少达到 COMPACT_THRESHOLD 个, 且超过存活 entry 的 COMPACT_RATIO 倍时才压缩;
+	// 压缩需要遍历整条链表, 比例越低越频繁, 比例越高链表中滞留的 entry 越多
+	private final static int COMPACT_THRESHOLD = 64;
+	private final static int COMPACT_RATIO = 4;
+
+	public final LongAdder taskCounter;
+	// DelayQueue 通过 getDelay 判断 bucket 是否到期, expiration 以 timeUnit 为单位
+	private final Time time;
+	private final TimeUnit timeUnit;
+	// 所在时间轮的层级, 0 为最底层
+	private final int level;
+	// 属于该 bucket 的 entry 个数; 同一个 bucket 上的并发 add 较多, 使用 LongAdder 避免竞争
+	private final LongAdder size = new LongAdder();
+	// 已删除但仍在链表中的 entry 个数
+	private final AtomicInteger garbage = new AtomicInteger(0);
+
+	private final AtomicReference<TimerTaskEntry> head = new AtomicReference<>(null);
 	private AtomicLong expiration = new AtomicLong(-1L);
 
-	public TimerTaskList(AtomicInteger taskCounter) {
+	public TimerTaskList(LongAdder taskCounter) {
+		this(taskCounter, 0);
+	}
+
+	public TimerTaskList(LongAdder taskCounter, int level) {
+		this(taskCounter, level, Time.SYSTEM);
+	}
+
+	public TimerTaskList(LongAdder taskCounter, int level, Time time) {
+		this(taskCounter, level, time, TimeUnit.MILLISECONDS);
+	}
+
+	public TimerTaskList(LongAdder taskCounter, int level, Time time, TimeUnit timeUnit) {
 		this.taskCounter = taskCounter;
-		root.next = root;
-		root.prev = root;
+		this.time = time;
+		this.timeUnit = timeUnit;
+		this.level = level;
 	}
 
 	public boolean setExpiration(long expirationMs) {
 		return expiration.getAndSet(expirationMs) != expirationMs;
 	}
 
-	public Long getExpiration() {
+	public long getExpiration() {
 		return expiration.get();
 	}
 
+	public int level() {
+		return level;
+	}
+
+	public int size() {
+		return (int) size.sum();
+	}
+
 	public void forEach(Consumer<? super TimerTask> action) {
 		Objects.requireNonNull(action);
-		synchronized (this) {
-			TimerTaskEntry entry = root.next;
-			while (entry != root) {
-				TimerTaskEntry nextEntry = entry.next;
-				if (!entry.cancel())
-					action.accept(entry.timerTask());
-				entry = nextEntry;
-			}
+		for (TimerTaskEntry entry = head.get(); entry != null; entry = entry.next) {
+			if (entry.list == this && !entry.cancel())
+				action.accept(entry.timerTask());
 		}
 	}
 
 	public void add(TimerTaskEntry timerTaskEntry) {
-		boolean done = false;
-		while (!done) {
+		timerTaskEntry.remove();
+		if (link(timerTaskEntry))
+			push(timerTaskEntry, timerTaskEntry);
+	}
+
+	// 批量插入: 先在本地串成一条链, 再一次 CAS 压入
+	public void addAll(List<TimerTaskEntry> timerTaskEntries) {
+		TimerTaskEntry first = null;
+		TimerTaskEntry last = null;
+		for (TimerTaskEntry timerTaskEntry : timerTaskEntries) {
 			timerTaskEntry.remove();
-			synchronized (timerTaskEntry) {
-				if (timerTaskEntry.list == null) {
-					TimerTaskEntry tail = root.prev;
-					timerTaskEntry.next = root;
-					timerTaskEntry.prev = tail;
-					timerTaskEntry.list = this;
-					tail.next = timerTaskEntry;
-					root.prev = timerTaskEntry;
-					taskCounter.incrementAndGet();
-					done = true;
-				}
-			}
+			if (!link(timerTaskEntry))
+				continue;
+			if (first == null)
+				last = timerTaskEntry;
+			else
+				timerTaskEntry.next = first;
+			first = timerTaskEntry;
 		}
+		if (first != null)
+			push(first, last);
 	}
 
-	public void flush(Consumer<? super TimerTaskEntry> action) {
-		synchronized (this) {
-			TimerTaskEntry head = root.next;
-			while (head != root) {
-				remove(head);
-//				System.out.println("删除 head : " + head.toString());
-				// 当 Task 为于高层时间轮时，其 tickMs >> ticks ， 因此，该 Task 会进行降层(也有可能过期)，插入到低层的时间轮中
-				// 父级的 tickMs = 当前层的 tikcMS * wheelSize
-				action.accept(head);
-				head = root.next;
+	// 取得 entry 的归属; entry 已被其他线程放入别的 bucket 时返回 false
+	private boolean link(TimerTaskEntry timerTaskEntry) {
+		if (!TimerTaskEntry.LIST.compareAndSet(timerTaskEntry, null, this))
+			return false;
+		size.increment();
+		taskCounter.increment();
+		return true;
+	}
+
+	private void push(TimerTaskEntry first, TimerTaskEntry last) {
+		TimerTaskEntry h;
+		do {
+			h = head.get();
+			last.next = h;
+		} while (!head.compareAndSet(h, first));
+	}
+
+	/**
+	 * 摘下所有 entry 并交给 action (通常是重新插入时间轮或者执行), 只由 reaper 调用
+	 * @return 交给 action 的 entry 个数
+	 */
+	public int flush(Consumer<? super TimerTaskEntry> action) {
+		expiration.set(-1L);
+		TimerTaskEntry entry = reverse(head.getAndSet(null));
+		int flushed = 0;
+		while (entry != null) {
+			// action 可能把 entry 压入另一条链表, 先取出 next
+			TimerTaskEntry next = entry.next;
+			entry.next = null;
+			if (unlink(entry)) {
+				flushed += 1;
+				action.accept(entry);
+			} else {
+				garbage.decrementAndGet();
+				entry.release();
 			}
-			expiration.set(-1L);
+			entry = next;
 		}
+		return flushed;
 	}
 
+	// 链表是后进先出的, 反转后按加入的顺序处理
+	private static TimerTaskEntry reverse(TimerTaskEntry entry) {
+		TimerTaskEntry reversed = null;
+		while (entry != null) {
+			TimerTaskEntry next = entry.next;
+			entry.next = reversed;
+			reversed = entry;
+			entry = next;
+		}
+		return reversed;
+	}
+
+	/**
+	 * 已删除的 entry 过多时, 把它们从链表中清除; 只由 reaper 调用, 与 add / remove 可以并发
+	 * @return 清除的 entry 个数
+	 */
+	public int compactIfNeeded() {
+		int dead = garbage.get();
+		if (dead < COMPACT_THRESHOLD || dead <= COMPACT_RATIO * size.sum())
+			return 0;
+		TimerTaskEntry entry = head.getAndSet(null);
+		TimerTaskEntry first = null;
+		TimerTaskEntry last = null;
+		int compacted = 0;
+		while (entry != null) {
+			TimerTaskEntry next = entry.next;
+			if (entry.list == this) {
+				entry.next = first;
+				if (first == null)
+					last = entry;
+				first = entry;
+			} else {
+				entry.next = null;
+				entry.release();
+				compacted += 1;
+			}
+			entry = next;
+		}
+		garbage.addAndGet(-compacted);
+		// 压回期间被删除的 entry 仍计入 garbage, 留给 flush 或下一次压缩
+		if (first != null)
+			push(first, last);
+		return compacted;
+	}
 
 	@Override
 	public long getDelay(TimeUnit unit) {
-		return unit.convert(Math.max(getExpiration()- Time.SYSTEM.hiResClockMs(),0), TimeUnit.MILLISECONDS);
+		return unit.convert(Math.max(getExpiration()- time.hiResClock(timeUnit),0), timeUnit);
 	}
 
 	@Override
@@ -100,28 +216,32 @@ public class TimerTaskList implements Delayed {
 			return 0;
 	}
 
- 	public void remove(TimerTaskEntry timerTaskEntry) {
-		synchronized (this) {
-			if (timerTaskEntry.list.equals(this)) {
-				timerTaskEntry.next.prev = timerTaskEntry.prev;
-				timerTaskEntry.prev.next = timerTaskEntry.next;
-				timerTaskEntry.next = null;
-				timerTaskEntry.prev = null;
-				timerTaskEntry.list = null;
-				taskCounter.decrementAndGet();
-			}
+	// 逻辑删除: entry 留在链表中, 由 flush 或 compactIfNeeded 回收
+	public void remove(TimerTaskEntry timerTaskEntry) {
+		if (TimerTaskEntry.LIST.compareAndSet(timerTaskEntry, this, null)) {
+			size.decrement();
+			taskCounter.decrement();
+			garbage.incrementAndGet();
+		}
+	}
+
+	// flush 时取消 entry 的归属, 与并发的 remove 竞争, 成功的一方负责计数
+	private boolean unlink(TimerTaskEntry timerTaskEntry) {
+		if (TimerTaskEntry.LIST.compareAndSet(timerTaskEntry, this, null)) {
+			size.decrement();
+			taskCounter.decrement();
+			return true;
 		}
+		return false;
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-			TimerTaskEntry entry = root.next;
-			while (entry != root) {
+		for (TimerTaskEntry entry = head.get(); entry != null; entry = entry.next) {
+			if (entry.list == this)
 				sb.append(entry.toString());
-				TimerTaskEntry nextEntry = entry.next;
-				entry = nextEntry;
-			}
+		}
 		return "TimerTaskList:"+sb.toString()+"";
 	}
 }
@@ -2,8 +2,15 @@ package com.cc.common.utils.timer;
 
 import com.cc.common.utils.Time;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.DelayQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * User: chenchong
@@ -92,38 +99,83 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class TimingWheel {
 
+	// 时间均以 timeUnit 为单位, 默认为毫秒; 亚毫秒精度时 tickMs / startMs 等实际为更细的单位
+	private final TimeUnit timeUnit;
 	private final long tickMs;
 	private final int wheelSize;
 	private final long startMs;
-	private final AtomicInteger taskCounter;
+	private final LongAdder taskCounter;
+	// DelayQueue 模式下 bucket 通过 queue 调度; cursor 模式下 queue 为 null, 由 occupied 位图记录非空的 bucket
 	private final DelayQueue<TimerTaskList> queue;
+	private final AtomicLongArray occupied;
+	// cursor 模式下 bucket 被设置新的过期时间时回调, 用于唤醒等待中的 reaper
+	private final LongConsumer onBucketScheduled;
+	private final Time time;
+	// 0 为最底层, 每个上层时间轮加一
+	private final int level;
 
 	private final long interval;
 	private final TimerTaskList[] buckets;
 	private long currentTime;
 	private volatile TimingWheel overflowWheel;
 
-	public TimingWheel(long tickMs, int wheelSize, long startMs, AtomicInteger taskCounter,
+	public TimingWheel(long tickMs, int wheelSize, long startMs, LongAdder taskCounter,
 					   DelayQueue<TimerTaskList> queue) {
+		this(tickMs, wheelSize, startMs, taskCounter, queue, Time.SYSTEM);
+	}
+
+	public TimingWheel(long tickMs, int wheelSize, long startMs, LongAdder taskCounter,
+					   DelayQueue<TimerTaskList> queue, Time time) {
+		this(tickMs, wheelSize, startMs, taskCounter, queue, time, TimeUnit.MILLISECONDS);
+	}
+
+	public TimingWheel(long tick, int wheelSize, long start, LongAdder taskCounter,
+					   DelayQueue<TimerTaskList> queue, Time time, TimeUnit timeUnit) {
+		this(tick, wheelSize, start, taskCounter, queue, null, time, timeUnit, 0);
+	}
+
+	/**
+	 * cursor 模式: 不使用 DelayQueue, 由调用方通过 nextExpiration / pollExpired 直接遍历各层的 bucket
+	 * @param onBucketScheduled 参数为 bucket 的过期时间
+	 */
+	public TimingWheel(long tickMs, int wheelSize, long startMs, LongAdder taskCounter, Time time,
+					   LongConsumer onBucketScheduled) {
+		this(tickMs, wheelSize, startMs, taskCounter, time, TimeUnit.MILLISECONDS, onBucketScheduled);
+	}
+
+	public TimingWheel(long tick, int wheelSize, long start, LongAdder taskCounter, Time time, TimeUnit timeUnit,
+					   LongConsumer onBucketScheduled) {
+		this(tick, wheelSize, start, taskCounter, null, onBucketScheduled, time, timeUnit, 0);
+	}
+
+	private TimingWheel(long tickMs, int wheelSize, long startMs, LongAdder taskCounter,
+						DelayQueue<TimerTaskList> queue, LongConsumer onBucketScheduled, Time time, TimeUnit timeUnit,
+						int level) {
+		this.timeUnit = timeUnit;
 		this.tickMs = tickMs;
 		this.wheelSize = wheelSize;
 		this.startMs = startMs;
 		this.taskCounter = taskCounter;
 		this.queue = queue;
+		this.occupied = queue == null ? new AtomicLongArray((wheelSize + 63) >>> 6) : null;
+		this.onBucketScheduled = onBucketScheduled;
+		this.time = time;
+		this.level = level;
 
 		this.interval = tickMs * wheelSize;
 		this.buckets = new TimerTaskList[wheelSize];
 		this.currentTime = startMs - (startMs % tickMs);
 
 		for(int i = 0; i < buckets.length;) {
-			buckets[i++] = new TimerTaskList(taskCounter);
+			buckets[i++] = new TimerTaskList(taskCounter, level, time, timeUnit);
 		}
 	}
 
 	private void addOverflowWheel() {
 		synchronized (this) {
 			if (overflowWheel == null) {
-				overflowWheel = new TimingWheel(interval, wheelSize, currentTime, taskCounter, queue);
+				overflowWheel = new TimingWheel(interval, wheelSize, currentTime, taskCounter, queue, onBucketScheduled,
+						time, timeUnit, level + 1);
 			}
 		}
 	}
@@ -145,9 +197,7 @@ public class TimingWheel {
 			TimerTaskList bucket = buckets[index];
 			bucket.add(timerTaskEntry);
 			// 设置 bucket 的过期时间, 并将 bucket 添加到 DelayQueue
-			if (bucket.setExpiration(virtualId * tickMs)) {
-				queue.offer(bucket);
-			}
+			schedule(bucket, index, virtualId * tickMs);
 			return true;
 		} else {
 			if (overflowWheel == null)
@@ -156,6 +206,197 @@ public class TimingWheel {
 		}
 	}
 
+	/**
+	 * 批量插入: 按 bucket 分组后每个 bucket 只加锁一次, 超出本层范围的任务整体交给上层时间轮
+	 * @param notAdded 已取消或已过期而没有插入的任务 (与 add 返回 false 的情况相同)
+	 */
+	public void addAll(List<TimerTaskEntry> timerTaskEntries, List<TimerTaskEntry> notAdded) {
+		List<List<TimerTaskEntry>> grouped = null;
+		List<TimerTaskEntry> overflow = null;
+		for (TimerTaskEntry timerTaskEntry : timerTaskEntries) {
+			long expiration = timerTaskEntry.expirationMs();
+			if (timerTaskEntry.cancel() || expiration < currentTime + tickMs) {
+				notAdded.add(timerTaskEntry);
+			} else if (expiration < currentTime + interval) {
+				if (grouped == null)
+					grouped = new ArrayList<>(Collections.nCopies(wheelSize, (List<TimerTaskEntry>) null));
+				int index = (int)((expiration / tickMs) % wheelSize);
+				List<TimerTaskEntry> group = grouped.get(index);
+				if (group == null) {
+					group = new ArrayList<>();
+					grouped.set(index, group);
+				}
+				group.add(timerTaskEntry);
+			} else {
+				if (overflow == null)
+					overflow = new ArrayList<>();
+				overflow.add(timerTaskEntry);
+			}
+		}
+		if (grouped != null) {
+			for (List<TimerTaskEntry> group : grouped) {
+				if (group == null)
+					continue;
+				// 同一层中落入同一个 bucket 的任务 virtualId 相同
+				long virtualId = group.get(0).expirationMs() / tickMs;
+				int index = (int)(virtualId % wheelSize);
+				TimerTaskList bucket = buckets[index];
+				bucket.addAll(group);
+				schedule(bucket, index, virtualId * tickMs);
+			}
+		}
+		if (overflow != null) {
+			if (overflowWheel == null)
+				addOverflowWheel();
+			overflowWheel.addAll(overflow, notAdded);
+		}
+	}
+
+	// bucket 的过期时间变化意味着它开始了新的一轮, 需要重新调度
+	private void schedule(TimerTaskList bucket, int index, long expiration) {
+		if (bucket.setExpiration(expiration)) {
+			if (queue != null) {
+				queue.offer(bucket);
+			} else {
+				markOccupied(index);
+				onBucketScheduled.accept(expiration);
+			}
+		}
+	}
+
+	// 并发的 add 只会置位, 清除只在 pollExpired 中 (与 add 互斥) 进行
+	private void markOccupied(int index) {
+		int word = index >>> 6;
+		long bit = 1L << index;
+		long bits;
+		do {
+			bits = occupied.get(word);
+			if ((bits & bit) != 0)
+				return;
+		} while (!occupied.compareAndSet(word, bits, bits | bit));
+	}
+
+	// 从 from 开始 (含) 的第一个非空 bucket 的下标, 不存在返回 -1
+	private int nextOccupied(int from) {
+		int word = from >>> 6;
+		if (word >= occupied.length())
+			return -1;
+		long bits = occupied.get(word) & (-1L << from);
+		while (true) {
+			if (bits != 0) {
+				int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return index < wheelSize ? index : -1;
+			}
+			if (++word == occupied.length())
+				return -1;
+			bits = occupied.get(word);
+		}
+	}
+
+	// 本层中过期时间最早的非空 bucket 的下标: 从当前时间对应的槽位开始环形查找
+	private int firstOccupied() {
+		int cursor = (int)((currentTime / tickMs) % wheelSize);
+		int index = nextOccupied(cursor);
+		if (index < 0 && cursor > 0)
+			index = nextOccupied(0);
+		return index;
+	}
+
+	/**
+	 * cursor 模式下所有层中最早的 bucket 过期时间, 没有非空 bucket 时返回 Long.MAX_VALUE
+	 */
+	public long nextExpiration() {
+		long next = Long.MAX_VALUE;
+		for (TimingWheel wheel = this; wheel != null; wheel = wheel.overflowWheel) {
+			int index = wheel.firstOccupied();
+			if (index >= 0) {
+				long expiration = wheel.buckets[index].getExpiration();
+				if (expiration >= 0 && expiration < next)
+					next = expiration;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * cursor 模式下取出所有层中最早且已经到期 (过期时间 <= now) 的 bucket, 并清除其占用标记;
+	 * 调用方需要保证期间没有并发的 add, 与 DelayQueue.poll 的用法相同
+	 */
+	public TimerTaskList pollExpired(long now) {
+		TimingWheel earliest = null;
+		int earliestIndex = -1;
+		long earliestExpiration = Long.MAX_VALUE;
+		for (TimingWheel wheel = this; wheel != null; wheel = wheel.overflowWheel) {
+			int index = wheel.firstOccupied();
+			if (index >= 0) {
+				long expiration = wheel.buckets[index].getExpiration();
+				if (expiration < earliestExpiration) {
+					earliest = wheel;
+					earliestIndex = index;
+					earliestExpiration = expiration;
+				}
+			}
+		}
+		if (earliest == null || earliestExpiration > now)
+			return null;
+		int word = earliestIndex >>> 6;
+		earliest.occupied.set(word, earliest.occupied.get(word) & ~(1L << earliestIndex));
+		return earliest.buckets[earliestIndex];
+	}
+
+	// 包括本层在内的时间轮层数
+	public int levels() {
+		TimingWheel overflow = overflowWheel;
+		return overflow == null ? 1 : 1 + overflow.levels();
+	}
+
+	// 每一层 bucket 中的 entry 个数, 下标为层级; 读取时不加锁, 结果是近似值
+	public long[] occupancy() {
+		long[] occupancy = new long[levels()];
+		TimingWheel wheel = this;
+		for (int i = 0; i < occupancy.length && wheel != null; i++) {
+			for (TimerTaskList bucket : wheel.buckets)
+				occupancy[i] += bucket.size();
+			wheel = wheel.overflowWheel;
+		}
+		return occupancy;
+	}
+
+	/**
+	 * 清除各层 bucket 中已删除 (取消) 但仍留在链表里的 entry, 返回清除的个数;
+	 * 不需要与 add 互斥, 由 reaper 在 advanceClock 之后调用
+	 */
+	public int compact() {
+		int compacted = 0;
+		for (TimingWheel wheel = this; wheel != null; wheel = wheel.overflowWheel) {
+			for (TimerTaskList bucket : wheel.buckets)
+				compacted += bucket.compactIfNeeded();
+		}
+		return compacted;
+	}
+
+	/**
+	 * 摘下各层所有 bucket 中的 entry 交给 action, 用于以新的 geometry 重建时间轮;
+	 * 调用方需要保证期间没有并发的 add
+	 * @return 交给 action 的 entry 个数
+	 */
+	public int flushAll(Consumer<? super TimerTaskEntry> action) {
+		int flushed = 0;
+		for (TimingWheel wheel = this; wheel != null; wheel = wheel.overflowWheel) {
+			for (TimerTaskList bucket : wheel.buckets)
+				flushed += bucket.flush(action);
+		}
+		return flushed;
+	}
+
+	public long tick() {
+		return tickMs;
+	}
+
+	public int wheelSize() {
+		return wheelSize;
+	}
+
 	// Try to advance the clock
 	public void advanceClock(long timeMs) {
 		if (timeMs >= currentTime + tickMs) {
@@ -0,0 +1,375 @@
+package com.cc.delay;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	DelayedOperationPurgatory 的准入控制: 限制未完成的 operation 总数与每个 key 上的个数
+ *
+ * tryCompleteElseWatch 中没有立即完成的 operation 在 watch 之前占用一个名额 (总数以及它的每个 watch key 各一个),
+ * 完成、过期或被 cancelForKey 取消时归还。名额用尽时按 policy 处理:
+ *  BLOCK:           等待其它 operation 归还名额, 最多 blockTimeoutMs, 超时后拒绝
+ *  REJECT:          立即拒绝
+ *  EXPIRE_EARLIEST: 强制过期截止时间最早的 operation (总数满时在所有 operation 中选, 某个 key 满时在该 key 的 operation 中选),
+ *                   被选中的 operation 与正常过期一样执行 onComplete / onExpiration;
+ *                   总数与每个 key 上各有一个按截止时间排序的索引, 每次选择为 O(log n)
+ * 拒绝时 tryCompleteElseWatch 抛出 RejectedExecutionException, operation 不会被 watch 也不会加入时间轮。
+ * tryCompleteElseWatchAll 的一批 operation 要么全部准入, 要么全部拒绝: 等待 (BLOCK) 期间不持有任何名额,
+ * 超过上限、永远不可能准入的批次立即拒绝。
+ *
+ * 一个 AdmissionControl 只能用于一个 purgatory。UNLIMITED 不做任何限制, 也不记录状态。
+ */
+public class AdmissionControl {
+
+	public enum Policy {
+		BLOCK,
+		REJECT,
+		EXPIRE_EARLIEST
+	}
+
+	public final static AdmissionControl UNLIMITED =
+			new AdmissionControl(Integer.MAX_VALUE, Integer.MAX_VALUE, Policy.REJECT, 0L);
+
+	// 为一个 operation 腾出名额时最多强制过期的个数 (一批时每多一个 operation 加一), 避免与并发的准入无限竞争
+	private final static int MAX_EXPIRE_ATTEMPTS = 16;
+	// tryAcquire 因总数已满而失败
+	private final static Object TOTAL = new Object();
+	// EXPIRE_EARLIEST 的索引顺序: 截止时间相同时先准入的先过期
+	private final static Comparator<Admitted> BY_DEADLINE =
+			Comparator.comparingLong((Admitted entry) -> entry.deadlineMs).thenComparingLong(entry -> entry.seq);
+
+	private final int maxOperations;
+	private final int maxOperationsPerKey;
+	private final Policy policy;
+	private final long blockTimeoutMs;
+	private final boolean limited;
+
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+	// 只在限制了每个 key 的个数时使用, 计数归零的 key 被删除
+	private final ConcurrentHashMap<Object, Integer> outstandingForKey;
+	// 已准入的 operation -> 其记录, 按引用查找; 只在 EXPIRE_EARLIEST 或限制了每个 key 的个数时使用,
+	// 占用名额的 key 与截止时间只记录在这里, operation 本身不保存任何准入状态
+	private final ConcurrentHashMap<Admitted, Admitted> admitted;
+	// 以下只在 EXPIRE_EARLIEST 时使用
+	// 限制了总数时: 按截止时间排序的全部记录
+	private final ConcurrentSkipListSet<Admitted> byDeadline;
+	// 限制了每个 key 的个数时: 每个 key 上按截止时间排序的记录, 为空的 key 被删除
+	private final ConcurrentHashMap<Object, ConcurrentSkipListSet<Admitted>> byDeadlineForKey;
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	// BLOCK: 等待名额的线程在 released 上等待, 归还名额时只在有等待者时加锁唤醒
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private final AtomicInteger waiters = new AtomicInteger(0);
+
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder blocked = new LongAdder();
+	private final LongAdder expiredToAdmit = new LongAdder();
+
+	public AdmissionControl(int maxOperations, Policy policy) {
+		this(maxOperations, Integer.MAX_VALUE, policy, 0L);
+	}
+
+	/**
+	 * @param maxOperations 未完成的 operation 总数的上限
+	 * @param maxOperationsPerKey 每个 watch key 上未完成的 operation 个数的上限
+	 * @param blockTimeoutMs BLOCK 时最长的等待时间, 其它 policy 忽略
+	 */
+	public AdmissionControl(int maxOperations, int maxOperationsPerKey, Policy policy, long blockTimeoutMs) {
+		if (maxOperations <= 0 || maxOperationsPerKey <= 0)
+			throw new IllegalArgumentException("Limits must be positive: " + maxOperations + ", " + maxOperationsPerKey);
+		this.maxOperations = maxOperations;
+		this.maxOperationsPerKey = maxOperationsPerKey;
+		this.policy = policy;
+		this.blockTimeoutMs = blockTimeoutMs;
+		this.limited = maxOperations < Integer.MAX_VALUE || maxOperationsPerKey < Integer.MAX_VALUE;
+		this.outstandingForKey = maxOperationsPerKey < Integer.MAX_VALUE ? new ConcurrentHashMap<>() : null;
+		boolean expiring = policy == Policy.EXPIRE_EARLIEST && limited;
+		this.admitted = expiring || outstandingForKey != null ? new ConcurrentHashMap<>() : null;
+		this.byDeadline = expiring && maxOperations < Integer.MAX_VALUE ? new ConcurrentSkipListSet<>(BY_DEADLINE) : null;
+		this.byDeadlineForKey = expiring && outstandingForKey != null ? new ConcurrentHashMap<>() : null;
+	}
+
+	/**
+	 * 为 operation 占用名额, 在 watch 之前调用; operation.watching(watchKeys) 需要已经设置。
+	 * 不限制时直接返回, 只有 EXPIRE_EARLIEST 需要截止时间, 才读取时钟
+	 * @throws RejectedExecutionException 名额已满且按 policy 无法腾出
+	 */
+	void acquire(DelayedOperationPurgatory<?> purgatory, DelayedOperation operation) {
+		if (!limited)
+			return;
+		acquireAll(purgatory, Collections.singletonList(operation));
+	}
+
+	/**
+	 * 为一批 operation 占用名额, 要么全部占用, 要么一个也不占用
+	 * @throws RejectedExecutionException 批次超过上限, 或名额不足且按 policy 无法腾出
+	 */
+	void acquireAll(DelayedOperationPurgatory<?> purgatory, List<? extends DelayedOperation> operations) {
+		if (!limited || operations.isEmpty())
+			return;
+		Object full = exceedsLimits(operations);
+		if (full == null && (full = tryAcquireAll(operations)) != null) {
+			switch (policy) {
+				case BLOCK:
+					blocked.increment();
+					full = await(operations);
+					break;
+				case EXPIRE_EARLIEST:
+					full = expireToAdmit(operations, full);
+					break;
+				default:
+					break;
+			}
+		}
+		if (full != null) {
+			rejected.increment();
+			throw new RejectedExecutionException(full == TOTAL
+					? "Too many outstanding operations: " + maxOperations
+					: "Too many outstanding operations for key " + full + ": " + maxOperationsPerKey);
+		}
+		long nowMs = policy == Policy.EXPIRE_EARLIEST ? purgatory.time().hiResClockMs() : 0L;
+		for (DelayedOperation operation : operations) {
+			// 先登记再标记: 标记之后的 release 一定能找到并删除这条记录
+			if (admitted != null)
+				index(new Admitted(operation, operation.watchKeys(), nowMs + operation.delayMs(),
+						sequence.incrementAndGet()));
+			operation.markAdmitted();
+		}
+		// 在 tryComplete 之后、标记之前被其它线程完成 (如 completeWith, BLOCK 时整个等待期间都可能发生) 的 operation,
+		// 完成时的 release 看不到标记而没有归还名额, 由这里归还; 两边都归还时只有清除标记的一方生效
+		for (DelayedOperation operation : operations) {
+			if (operation.isCompleted())
+				release(operation);
+		}
+	}
+
+	// 一批中的 operation 个数本身超过上限时返回已满的 key (总数超限时为 TOTAL), 这样的批次等待或过期都无法准入
+	private Object exceedsLimits(List<? extends DelayedOperation> operations) {
+		if (operations.size() > maxOperations)
+			return TOTAL;
+		if (outstandingForKey == null || operations.size() <= maxOperationsPerKey)
+			return null;
+		Map<Object, Integer> counts = new HashMap<>();
+		for (DelayedOperation operation : operations) {
+			for (Object key : operation.watchKeys()) {
+				if (counts.merge(key, 1, Integer::sum) > maxOperationsPerKey)
+					return key;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 归还 operation 占用的名额, 可以重复调用; 没有占用名额的 operation 直接返回
+	 */
+	void release(DelayedOperation operation) {
+		if (!operation.clearAdmitted())
+			return;
+		// 按准入时的 key 归还: 之后经 watchForOperation 追加的 key 没有占用名额
+		Admitted entry = admitted != null ? unindex(operation) : null;
+		releaseSlots(entry != null ? entry.keys : null);
+		signalWaiters();
+	}
+
+	private void index(Admitted entry) {
+		admitted.put(entry, entry);
+		if (byDeadline != null)
+			byDeadline.add(entry);
+		if (byDeadlineForKey != null) {
+			for (Object key : entry.keys) {
+				byDeadlineForKey.compute(key, (k, entries) -> {
+					if (entries == null)
+						entries = new ConcurrentSkipListSet<>(BY_DEADLINE);
+					entries.add(entry);
+					return entries;
+				});
+			}
+		}
+	}
+
+	private Admitted unindex(DelayedOperation operation) {
+		Admitted entry = admitted.remove(new Admitted(operation, null, 0L, 0L));
+		if (entry == null)
+			return null;
+		if (byDeadline != null)
+			byDeadline.remove(entry);
+		if (byDeadlineForKey != null) {
+			for (Object key : entry.keys) {
+				byDeadlineForKey.computeIfPresent(key, (k, entries) -> {
+					entries.remove(entry);
+					return entries.isEmpty() ? null : entries;
+				});
+			}
+		}
+		return entry;
+	}
+
+	private void releaseSlots(List<Object> watchKeys) {
+		outstanding.decrementAndGet();
+		if (outstandingForKey != null && watchKeys != null) {
+			for (Object key : watchKeys)
+				releaseKey(key);
+		}
+	}
+
+	private void signalWaiters() {
+		if (waiters.get() > 0) {
+			lock.lock();
+			try {
+				released.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// 成功时返回 null, 否则返回已满的 key (总数已满时为 TOTAL), 已占用的名额全部归还
+	private Object tryAcquire(List<Object> watchKeys) {
+		int n;
+		do {
+			n = outstanding.get();
+			if (n >= maxOperations)
+				return TOTAL;
+		} while (!outstanding.compareAndSet(n, n + 1));
+		if (outstandingForKey == null)
+			return null;
+		for (int i = 0; i < watchKeys.size(); i++) {
+			Object key = watchKeys.get(i);
+			if (!acquireKey(key)) {
+				for (int j = 0; j < i; j++)
+					releaseKey(watchKeys.get(j));
+				outstanding.decrementAndGet();
+				return key;
+			}
+		}
+		return null;
+	}
+
+	// 依次占用每个 operation 的名额, 失败时归还本批已占用的全部名额
+	private Object tryAcquireAll(List<? extends DelayedOperation> operations) {
+		for (int i = 0; i < operations.size(); i++) {
+			Object full = tryAcquire(operations.get(i).watchKeys());
+			if (full != null) {
+				for (int j = 0; j < i; j++)
+					releaseSlots(operations.get(j).watchKeys());
+				if (i > 0)
+					signalWaiters();
+				return full;
+			}
+		}
+		return null;
+	}
+
+	private boolean acquireKey(Object key) {
+		boolean[] acquired = {false};
+		outstandingForKey.compute(key, (k, n) -> {
+			int count = n == null ? 0 : n;
+			if (count >= maxOperationsPerKey)
+				return n;
+			acquired[0] = true;
+			return count + 1;
+		});
+		return acquired[0];
+	}
+
+	private void releaseKey(Object key) {
+		outstandingForKey.computeIfPresent(key, (k, n) -> n <= 1 ? null : n - 1);
+	}
+
+	private Object await(List<? extends DelayedOperation> operations) {
+		long remainingNs = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+		Object full;
+		waiters.incrementAndGet();
+		lock.lock();
+		try {
+			// 先登记为等待者再重试: 之后归还名额的线程一定会唤醒这里
+			while ((full = tryAcquireAll(operations)) != null && remainingNs > 0)
+				remainingNs = released.awaitNanos(remainingNs);
+			return full;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return TOTAL;
+		} finally {
+			lock.unlock();
+			waiters.decrementAndGet();
+		}
+	}
+
+	// 从对应的索引中取出截止时间最早的 operation 强制过期, 每次 O(log n), 不遍历 key 上的 operation
+	private Object expireToAdmit(List<? extends DelayedOperation> operations, Object full) {
+		// 一批 operation 可能需要为每个腾出名额
+		for (int i = 0; i < MAX_EXPIRE_ATTEMPTS + operations.size() - 1 && full != null; i++) {
+			ConcurrentSkipListSet<Admitted> entries = full == TOTAL ? byDeadline : byDeadlineForKey.get(full);
+			Admitted victim = entries == null ? null : entries.pollFirst();
+			if (victim == null)
+				return full;
+			// 取出的记录可能属于正在完成、尚未 release 的 operation, 由完成时的 release 归还名额
+			if (victim.operation.expire())
+				expiredToAdmit.increment();
+			full = tryAcquireAll(operations);
+		}
+		return full;
+	}
+
+	public int outstanding() {
+		return outstanding.get();
+	}
+
+	public long rejectedCount() {
+		return rejected.sum();
+	}
+
+	// 因名额已满而等待过的次数, 包括等待后仍被拒绝的
+	public long blockedCount() {
+		return blocked.sum();
+	}
+
+	// 为腾出名额而被强制过期的 operation 个数
+	public long expiredToAdmitCount() {
+		return expiredToAdmit.sum();
+	}
+
+	public Policy policy() {
+		return policy;
+	}
+
+	// 一个已准入 operation 占用名额的 key、截止时间与准入顺序; 作为 admitted 的 key 时按 operation 的引用比较
+	private static final class Admitted {
+		private final DelayedOperation operation;
+		private final List<Object> keys;
+		private final long deadlineMs;
+		private final long seq;
+
+		private Admitted(DelayedOperation operation, List<Object> keys, long deadlineMs, long seq) {
+			this.operation = operation;
+			this.keys = keys;
+			this.deadlineMs = deadlineMs;
+			this.seq = seq;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(operation);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Admitted && ((Admitted) o).operation == operation;
+		}
+	}
+}
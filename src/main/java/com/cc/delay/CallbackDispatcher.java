@@ -0,0 +1,50 @@
+package com.cc.delay;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	决定 DelayedOperation 的 onComplete / onExpiration 在哪个线程执行
+ *
+ * executor 为 null 表示在触发完成的线程上直接执行 (即原来的行为):
+ *  onComplete 在调用 checkAndComplete / tryCompleteElseWatch 的线程上, onExpiration 在时间轮的 taskExecutor 上。
+ * 通过 bulkhead 可以为某一类 operation 指定独立的 executor, 使慢回调只影响同类 operation。
+ * executor 的生命周期由调用方管理, purgatory 关闭时不会关闭它们。
+ */
+public class CallbackDispatcher {
+
+	public final static CallbackDispatcher INLINE = new CallbackDispatcher(null, null);
+
+	private final Executor completionExecutor;
+	private final Executor expirationExecutor;
+	private final Map<Class<?>, Executor> bulkheads = new ConcurrentHashMap<>();
+
+	public CallbackDispatcher(Executor completionExecutor, Executor expirationExecutor) {
+		this.completionExecutor = completionExecutor;
+		this.expirationExecutor = expirationExecutor;
+	}
+
+	/**
+	 * 为该类型 (精确匹配 getClass()) 的 operation 指定独立的 executor, 同时用于 onComplete 与 onExpiration
+	 * @throws IllegalStateException 在共享的 INLINE 上调用
+	 */
+	public CallbackDispatcher bulkhead(Class<? extends DelayedOperation> type, Executor executor) {
+		if (this == INLINE)
+			throw new IllegalStateException("INLINE dispatcher is shared and can't have bulkheads");
+		bulkheads.put(type, executor);
+		return this;
+	}
+
+	Executor completionExecutor(DelayedOperation operation) {
+		Executor bulkhead = bulkheads.isEmpty() ? null : bulkheads.get(operation.getClass());
+		return bulkhead != null ? bulkhead : completionExecutor;
+	}
+
+	Executor expirationExecutor(DelayedOperation operation) {
+		Executor bulkhead = bulkheads.isEmpty() ? null : bulkheads.get(operation.getClass());
+		return bulkhead != null ? bulkhead : expirationExecutor;
+	}
+}
@@ -0,0 +1,96 @@
+package com.cc.delay;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	以 CompletableFuture 交付结果的 DelayedOperation
+ *
+ * 子类只需实现 tryComplete(), 条件满足时调用 completeWith(result):
+ *  完成时 future 以 result 正常结束; 过期时 future 以 TimeoutException 异常结束;
+ *  不经 completeWith 直接 forceComplete 或被 cancelForKey 取消时 future 以 CancellationException 异常结束。
+ * 通过 DelayedFuturePurgatory.tryCompleteElseWatchAsync watch 并取得 future,
+ * 调用方在 future 上串联后续处理即可, 不需要为每个请求占用一个线程等待。
+ */
+public abstract class DelayedFutureOperation<R> extends DelayedOperation {
+
+	// 过期时的 outcome
+	private final static Object EXPIRED = new Object();
+	// 不经 completeWith 直接 forceComplete 时的 outcome
+	private final static Object FORCED = new Object();
+
+	private final CompletableFuture<R> future = new CompletableFuture<>();
+	// 只由赢得完成的线程在 onCompleting 中设置: 过期与 completeWith 竞争时, future 的结果与 completeWith 的返回值一致
+	private volatile Object outcome = null;
+
+	public DelayedFutureOperation(long delayMs) {
+		super(delayMs);
+	}
+
+	public DelayedFutureOperation(long delayMs, Lock lock) {
+		super(delayMs, lock);
+	}
+
+	public DelayedFutureOperation(long delay, TimeUnit unit) {
+		super(delay, unit);
+	}
+
+	public DelayedFutureOperation(long delay, TimeUnit unit, Lock lock) {
+		super(delay, unit, lock);
+	}
+
+	public CompletableFuture<R> future() {
+		return future;
+	}
+
+	/**
+	 * 以 result 完成该 operation, 在 tryComplete() 中条件满足时调用
+	 * @return 是否由本次调用完成; 已完成或已过期时返回 false
+	 */
+	protected boolean completeWith(R result) {
+		if (isCompleted())
+			return false;
+		return forceComplete(new Result<>(result));
+	}
+
+	@Override
+	void onCompleting(boolean expired, Object result) {
+		outcome = expired ? EXPIRED : result instanceof Result ? result : FORCED;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public final void onComplete() {
+		Object result = outcome;
+		if (result == null || result == EXPIRED)
+			future.completeExceptionally(new TimeoutException("Delayed operation expired after " + delayMs() + " ms"));
+		else if (result == FORCED)
+			future.completeExceptionally(new CancellationException("Delayed operation was force completed without a result"));
+		else
+			future.complete(((Result<R>) result).value);
+	}
+
+	// 被 cancelForKey 取消: 不执行 onComplete, 在取消的线程上结束 future, 串联的处理不会一直挂起
+	@Override
+	void onCancelled() {
+		future.completeExceptionally(new CancellationException("Delayed operation was cancelled"));
+	}
+
+	// future 已经在 onComplete 中结束
+	@Override
+	public final void onExpiration() {
+	}
+
+	private static final class Result<R> {
+		private final R value;
+
+		private Result(R value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.cc.delay;
+
+import com.cc.common.utils.Time;
+import com.cc.common.utils.timer.Timer;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	watch DelayedFutureOperation 的 purgatory, 以 future 交付结果
+ *
+ * 结果类型 R 由 purgatory 的类型确定, 调用方在返回的 future 上串联后续处理, 不需要为每个请求占用一个线程等待。
+ */
+public class DelayedFuturePurgatory<R, T extends DelayedFutureOperation<R>> extends DelayedOperationPurgatory<T> {
+
+	public DelayedFuturePurgatory(String purgatoryName) {
+		super(purgatoryName);
+	}
+
+	public DelayedFuturePurgatory(String purgatoryName, Timer timeoutTimer, int purgeInterval, boolean reaperEnable,
+								  boolean timerEnable) {
+		super(purgatoryName, timeoutTimer, purgeInterval, reaperEnable, timerEnable);
+	}
+
+	public DelayedFuturePurgatory(String purgatoryName, Timer timeoutTimer, int purgeInterval, boolean reaperEnable,
+								  boolean timerEnable, int shards, CallbackDispatcher dispatcher, Time time,
+								  AdmissionControl admission) {
+		super(purgatoryName, timeoutTimer, purgeInterval, reaperEnable, timerEnable, shards, dispatcher, time, admission);
+	}
+
+	/**
+	 * tryCompleteElseWatch 的异步版本
+	 *
+	 * @return operation 的 future: 完成时得到结果, 过期时以 TimeoutException 结束,
+	 *         被 cancelForKey 取消时以 CancellationException 结束, 被准入控制拒绝时以 RejectedExecutionException 结束
+	 */
+	public CompletableFuture<R> tryCompleteElseWatchAsync(T operation, List<Object> watchKeys) {
+		try {
+			tryCompleteElseWatch(operation, watchKeys);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<R> rejected = new CompletableFuture<>();
+			rejected.completeExceptionally(e);
+			return rejected;
+		}
+		return operation.future();
+	}
+}
@@ -4,9 +4,13 @@ import com.cc.common.utils.timer.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -14,17 +18,39 @@ import java.util.concurrent.locks.ReentrantLock;
  * Date: 2019/1/17
  * description:	规范延迟操作的实现标准
  *
+ * 子类可以在构造时设置 priority (继承自 TimerTask): purgatory 的 SystemTimer 使用 LaneExecutor 时,
+ * 过期的 operation 按 priority 分道执行, 大量低优先级的过期不会拖延关键请求的超时。
  *
+ * 完成、tryComplete 的执行 / 挂起以及准入名额的状态都保存在一个 int 中, 通过 field updater 以 CAS 更新:
+ * 不传入 lock 时 operation 不持有任何锁对象, TRY_COMPLETE_RUNNING 位起到 tryLock 的作用。
+ * 需要与其它对象共用一把锁时 (如 tryComplete 与外部状态的修改互斥) 仍可以在构造时传入 lock。
  */
 public abstract class DelayedOperation extends TimerTask {
 
-	 private AtomicBoolean completed = new AtomicBoolean(false);
-	 private AtomicBoolean tryCompletePending = new AtomicBoolean(false);
+	 private final static int COMPLETED = 1;
+	 // 有线程在执行 tryComplete (只在没有传入 lock 时使用)
+	 private final static int TRY_COMPLETE_RUNNING = 1 << 1;
+	 // 执行 tryComplete 期间有其它线程请求过 tryComplete, 执行者结束后需要重试
+	 private final static int TRY_COMPLETE_PENDING = 1 << 2;
+	 // 占用着 AdmissionControl 的准入名额
+	 private final static int ADMITTED = 1 << 3;
 
+	 private final static AtomicIntegerFieldUpdater<DelayedOperation> STATE =
+			 AtomicIntegerFieldUpdater.newUpdater(DelayedOperation.class, "state");
+	 @SuppressWarnings("rawtypes")
+	 private final static AtomicReferenceFieldUpdater<DelayedOperation, List> WATCH_KEYS =
+			 AtomicReferenceFieldUpdater.newUpdater(DelayedOperation.class, List.class, "watchKeys");
+
+	 private volatile int state = 0;
+	 // 为 null 时以 TRY_COMPLETE_RUNNING 位代替
 	 private final Lock lock;
+	 // 由 purgatory 在 watch 之前设置: 决定回调在哪个线程执行, 并统计完成 / 过期的个数
+	 private volatile DelayedOperationPurgatory<?> purgatory = null;
+	 // 由 purgatory 在放入 watchers 之前设置: 完成时据此把这些 key 的 watchers 标记为需要清理
+	 private volatile List<Object> watchKeys = null;
 
 	 public DelayedOperation(long delayMs) {
-		this(delayMs,new ReentrantLock());
+		this(delayMs, (Lock) null);
 	 }
 
 	 public DelayedOperation(long delayMs, Lock lock) {
@@ -32,18 +58,161 @@ public abstract class DelayedOperation extends TimerTask {
 		this.lock = lock;
 	 }
 
+	 // 亚毫秒精度的延迟, 需要配合以更细的单位构造的 SystemTimer 使用, 毫秒单位的时间轮中向上取整到毫秒
+	 public DelayedOperation(long delay, TimeUnit unit) {
+		this(delay, unit, null);
+	 }
+
+	 public DelayedOperation(long delay, TimeUnit unit, Lock lock) {
+		setDelay(delay, unit);
+		this.lock = lock;
+	 }
+
 	 public boolean forceComplete() {
-	 	if (completed.compareAndSet(false,true)) {
+	 	return complete(false, null);
+	 }
+
+	 // 带着结果完成: 只有赢得完成的调用会把 outcome 交给 onCompleting, 见 DelayedFutureOperation.completeWith
+	 boolean forceComplete(Object outcome) {
+	 	return complete(false, outcome);
+	 }
+
+	 // 过期时 onComplete 与 onExpiration 在同一个任务里按顺序执行, 不会因为多线程的 executor 而乱序
+	 private boolean complete(boolean expired, Object outcome) {
+	 	if (setState(COMPLETED)) {
 	 		cancel();
-			onComplete();
+	 		onCompleting(expired, outcome);
+	 		DelayedOperationPurgatory<?> owner = purgatory;
+	 		CallbackDispatcher dispatcher = CallbackDispatcher.INLINE;
+	 		if (owner != null) {
+	 			owner.recordCompletion(this, expired, watchKeys);
+	 			dispatcher = owner.dispatcher();
+			}
+	 		Executor executor = expired ? dispatcher.expirationExecutor(this) : dispatcher.completionExecutor(this);
+	 		if (executor == null) {
+	 			onComplete();
+	 			if (expired)
+	 				onExpiration();
+			} else if (expired) {
+	 			executor.execute(this::completeExpired);
+			} else {
+	 			executor.execute(this::onComplete);
+			}
 			return true;
 		} else {
 	 		return false;
 		}
 	 }
 
+	 /**
+	  * 由 cancelForKey 调用: 与完成一样是终态 (之后其它 key 上的 checkAndComplete 不会再完成它, 等待清理),
+	  * 但不执行 onComplete / onExpiration, 也不计入完成或过期的个数
+	  * @return 是否由本次调用取消; 已经完成的 operation 返回 false
+	  */
+	 boolean cancelWatching() {
+	 	if (setState(COMPLETED)) {
+	 		cancel();
+	 		DelayedOperationPurgatory<?> owner = purgatory;
+	 		if (owner != null)
+	 			owner.recordCancellation(this, watchKeys);
+	 		onCancelled();
+	 		return true;
+		} else {
+	 		return false;
+		}
+	 }
+
+	 // 被 cancelForKey 取消之后在取消的线程上调用
+	 void onCancelled() {
+	 }
+
+	 // 由 AdmissionControl 调用, 为新的 operation 腾出名额; 与超时到期的处理相同
+	 boolean expire() {
+	 	return complete(true, null);
+	 }
+
+	 // 赢得完成之后、回调被分派之前在完成的线程上调用, 此后的 onComplete / onExpiration 都能看到这里的修改
+	 void onCompleting(boolean expired, Object outcome) {
+	 }
+
+	 private void completeExpired() {
+	 	onComplete();
+	 	onExpiration();
+	 }
+
+	 void watchedBy(DelayedOperationPurgatory<?> purgatory) {
+	 	this.purgatory = purgatory;
+	 }
+
+	 // 先设置 watchKeys 再检查 isCompleted: 与 complete 中先 CAS completed 再读取 watchKeys 配对,
+	 // 放入 watchers 的 operation 完成时一定能读到 watchKeys
+	 void watching(List<Object> watchKeys) {
+	 	this.watchKeys = watchKeys;
+	 }
+
+	 // 由 watchForOperation 调用: 以复制的方式追加 key, 完成时这个 key 的 watchers 同样会被标记为需要清理
+	 void watchingKey(Object key) {
+	 	List<Object> keys;
+	 	List<Object> updated;
+	 	do {
+	 		keys = watchKeys;
+	 		if (keys != null && keys.contains(key))
+	 			return;
+	 		updated = new ArrayList<>(keys == null ? 1 : keys.size() + 1);
+	 		if (keys != null)
+	 			updated.addAll(keys);
+	 		updated.add(key);
+		} while (!WATCH_KEYS.compareAndSet(this, keys, updated));
+	 }
+
+	 List<Object> watchKeys() {
+	 	return watchKeys;
+	 }
+
 	 public boolean isCompleted() {
-	 	return completed.get();
+	 	return (state & COMPLETED) != 0;
+	 }
+
+	 // 由 AdmissionControl 调用: 占用名额时设置, 归还时清除; 返回值表示本次调用是否改变了状态
+	 boolean markAdmitted() {
+	 	return setState(ADMITTED);
+	 }
+
+	 boolean clearAdmitted() {
+	 	return (clearState(ADMITTED) & ADMITTED) != 0;
+	 }
+
+	 // 设置 bit, 返回 bit 是否由本次调用设置
+	 private boolean setState(int bit) {
+	 	int s;
+	 	do {
+	 		s = state;
+	 		if ((s & bit) != 0)
+	 			return false;
+		} while (!STATE.compareAndSet(this, s, s | bit));
+	 	return true;
+	 }
+
+	 // 清除 bit, 返回清除之前的状态
+	 private int clearState(int bit) {
+	 	int s;
+	 	do {
+	 		s = state;
+	 		if ((s & bit) == 0)
+	 			return s;
+		} while (!STATE.compareAndSet(this, s, s & ~bit));
+	 	return s;
+	 }
+
+	 // 没有其它线程在执行 tryComplete 时设置 TRY_COMPLETE_RUNNING 并清除 TRY_COMPLETE_PENDING
+	 private boolean tryAcquireRunning() {
+	 	int s;
+	 	do {
+	 		s = state;
+	 		if ((s & TRY_COMPLETE_RUNNING) != 0)
+	 			return false;
+		} while (!STATE.compareAndSet(this, s, (s | TRY_COMPLETE_RUNNING) & ~TRY_COMPLETE_PENDING));
+	 	return true;
 	 }
 
 	 // DelayOperation completed 之后的 回调操作
@@ -53,29 +222,53 @@ public abstract class DelayedOperation extends TimerTask {
 
 	 public abstract boolean tryComplete();
 
-	 // 尝试调用 tryComplete()
+	 // 尝试调用 tryComplete(): 同一时刻只有一个线程执行, 其它线程不等待, 只留下 TRY_COMPLETE_PENDING
+	 // 由执行者结束后重试, 保证每次请求之后至少还有一次 tryComplete
 	 boolean maybeTryComplete() {
+	 	return lock == null ? maybeTryCompleteLockFree() : maybeTryCompleteLocked();
+	 }
+
+	 private boolean maybeTryCompleteLockFree() {
+	 	boolean retry = false;
+	 	boolean done = false;
+	 	do {
+	 		if (tryAcquireRunning()) {
+	 			int s;
+	 			try {
+	 				done = tryComplete();
+				} finally {
+	 				// 清除 RUNNING 的同时读取 PENDING, 之后设置 PENDING 的线程一定能看到 RUNNING 已清除而自行执行
+	 				s = clearState(TRY_COMPLETE_RUNNING);
+				}
+	 			retry = (s & TRY_COMPLETE_PENDING) != 0;
+			} else {
+	 			retry = setState(TRY_COMPLETE_PENDING);
+			}
+		} while (!isCompleted() && retry);
+	 	return done;
+	 }
+
+	 private boolean maybeTryCompleteLocked() {
 	 	boolean retry = false;
 	 	boolean done = false;
 	 	do {
 	 		if (lock.tryLock()) {
 	 			try {
-					tryCompletePending.set(false);
+	 				clearState(TRY_COMPLETE_PENDING);
 					done = tryComplete();
 				} finally {
 	 				lock.unlock();
 				}
-				retry = tryCompletePending.get();
+				retry = (state & TRY_COMPLETE_PENDING) != 0;
 			} else {
-	 			retry = !tryCompletePending.getAndSet(true);
+	 			retry = setState(TRY_COMPLETE_PENDING);
 			}
 		} while (!isCompleted() && retry);
 		 return done;
 	 }
 
 	 public void run() {
-		 if (forceComplete())
-			onExpiration();
+		 complete(true, null);
 	 }
 
 
@@ -1,18 +1,23 @@
 package com.cc.delay;
 
+import com.cc.common.metrics.JmxRegistry;
 import com.cc.common.utils.Logging;
 import com.cc.common.utils.Pool;
 import com.cc.common.utils.ShutdownableThread;
+import com.cc.common.utils.Time;
 import com.cc.common.utils.timer.SystemTimer;
 import com.cc.common.utils.timer.Timer;
 
+import javax.management.ObjectName;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import static com.cc.common.utils.CoreUtils.*;
 
 /**
  * User: chenchong
@@ -24,6 +29,11 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> extends Loggi
 	public final static int purgeInterval_default = 1000;
 	private final static boolean reaperEnable_default = true;
 	private final static boolean timerEnable_default = true;
+	private final static int shards_default = 1;
+	// 每次 advanceLock 中 purge 最多遍历的 operation 个数
+	private final static int purgeBatch_default = 10_000;
+	// 有待清理的已完成 operation 时 reaper 的轮询间隔
+	private final static long purgeCheckMs = 200L;
 
 
 	private final String purgatoryName;
@@ -31,10 +41,28 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> extends Loggi
 	public final int purgeInterval;
 	private final boolean reaperEnable;
 	private final boolean timerEnable;
-
-	private Pool<Object,Watchers> watchersForKey = new Pool<>(k->new Watchers(k));
-	private ReentrantReadWriteLock removeWatchersLock = new ReentrantReadWriteLock();
-	private AtomicInteger estimatedTotalOperations = new AtomicInteger(0);
+	private final CallbackDispatcher dispatcher;
+	private final AdmissionControl admission;
+	private final Time time;
+	private final PurgatoryMetrics metrics;
+	private final ObjectName metricsName;
+
+	// key 按 hash 分散到各个 shard, 每个 shard 拥有独立的 watchers、锁与计数
+	private final WatcherList[] watcherLists;
+	// 上一次 purge 时的 delayed(), 只由 reaper 线程写入
+	private volatile int purgeBaseline = 0;
+	// 一轮 purge 尚未完成; 只由 reaper 线程访问
+	private boolean purging = false;
+	// 下一次从哪个分片继续, 只在持有 purgeRunning 时访问
+	private int purgeCursor = 0;
+	// 同一时刻只有一个线程执行 purgeDirty: reaper, 或者没有 reaper 时完成 operation 的线程
+	private final AtomicBoolean purgeRunning = new AtomicBoolean(false);
+	// reaper 将要或正在不带超时地等待 (见 reaperTimeoutMs), 之后第一个完成或取消的 operation 负责唤醒它
+	private final AtomicBoolean reaperParked = new AtomicBoolean(false);
+	// 所有分片的 dirtyWatchers 中的 watchers 个数
+	private final AtomicInteger dirtyCount = new AtomicInteger(0);
+	// 所有 Watchers 中的 operation 个数, 随各个 Watchers 的 size 同步增减; 多个线程同时增减, 使用 LongAdder 分散竞争
+	private final LongAdder watchedOperations = new LongAdder();
 
 	// 通过该线程 来移动时间轮 并 调度 SchedulerThread.submit()
 	private ExpiredOperationReaper expirationReaper;
@@ -46,38 +74,111 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> extends Loggi
 
 	public DelayedOperationPurgatory(String purgatoryName, int purgeInterval, boolean reaperEnable,
 									 boolean timerEnable) {
-		this(purgatoryName, new SystemTimer(purgatoryName),
-				purgeInterval_default,reaperEnable_default,timerEnable_default);
+		this(purgatoryName, Time.SYSTEM, purgeInterval, reaperEnable, timerEnable);
+	}
+
+	// 亚毫秒精度: 时间轮的 tick 以 timeUnit 为单位, operation 以 DelayedOperation(delay, unit) 构造
+	public DelayedOperationPurgatory(String purgatoryName, long tick, TimeUnit timeUnit) {
+		this(purgatoryName, new SystemTimer(purgatoryName, tick, timeUnit), purgeInterval_default,
+				reaperEnable_default, timerEnable_default);
+	}
+
+	// 以 time 驱动的 SystemTimer, 配合 MockTime 可以在测试中推进虚拟时间
+	public DelayedOperationPurgatory(String purgatoryName, Time time, int purgeInterval, boolean reaperEnable,
+									 boolean timerEnable) {
+		this(purgatoryName, new SystemTimer(purgatoryName, time), purgeInterval, reaperEnable, timerEnable,
+				shards_default, CallbackDispatcher.INLINE, time);
 	}
 
 	public DelayedOperationPurgatory(String purgatoryName, Timer timeoutTimer , int purgeInterval,
 									 boolean reaperEnable, boolean timerEnable) {
+		this(purgatoryName, timeoutTimer, purgeInterval, reaperEnable, timerEnable, shards_default);
+	}
+
+	public DelayedOperationPurgatory(String purgatoryName, Timer timeoutTimer , int purgeInterval,
+									 boolean reaperEnable, boolean timerEnable, int shards) {
+		this(purgatoryName, timeoutTimer, purgeInterval, reaperEnable, timerEnable, shards, CallbackDispatcher.INLINE);
+	}
+
+	public DelayedOperationPurgatory(String purgatoryName, Timer timeoutTimer , int purgeInterval,
+									 boolean reaperEnable, boolean timerEnable, int shards,
+									 CallbackDispatcher dispatcher) {
+		this(purgatoryName, timeoutTimer, purgeInterval, reaperEnable, timerEnable, shards, dispatcher, Time.SYSTEM);
+	}
+
+	/**
+	 * @param shards watch key 的分片数, 每个分片有独立的 Pool 与计数器,
+	 *               多核下可以减少 watchForOperation / checkAndComplete 之间的竞争
+	 * @param dispatcher onComplete / onExpiration 的执行位置, 见 {@link CallbackDispatcher}
+	 * @param time 用于统计 purge 耗时, 应与 timeoutTimer 使用同一个时钟
+	 */
+	public DelayedOperationPurgatory(String purgatoryName, Timer timeoutTimer , int purgeInterval,
+									 boolean reaperEnable, boolean timerEnable, int shards,
+									 CallbackDispatcher dispatcher, Time time) {
+		this(purgatoryName, timeoutTimer, purgeInterval, reaperEnable, timerEnable, shards, dispatcher, time,
+				AdmissionControl.UNLIMITED);
+	}
+
+	/**
+	 * @param admission 未完成的 operation 总数与每个 key 上个数的限制, 见 {@link AdmissionControl}
+	 */
+	public DelayedOperationPurgatory(String purgatoryName, Timer timeoutTimer , int purgeInterval,
+									 boolean reaperEnable, boolean timerEnable, int shards,
+									 CallbackDispatcher dispatcher, Time time, AdmissionControl admission) {
+		if (shards <= 0)
+			throw new IllegalArgumentException("shards must be positive: " + shards);
 		this.purgatoryName = purgatoryName;
 		this.timeoutTimer = timeoutTimer;
 		this.purgeInterval = purgeInterval;
 		this.reaperEnable = reaperEnable;
 		this.timerEnable = timerEnable;
+		this.dispatcher = dispatcher;
+		this.time = time;
+		this.admission = admission;
+		this.watcherLists = newWatcherLists(shards);
+		this.metrics = new PurgatoryMetrics(this);
+		this.metricsName = JmxRegistry.objectName("com.cc.delay", "DelayedOperationPurgatory", purgatoryName);
+		JmxRegistry.register(metricsName, metrics);
 		this.expirationReaper = new ExpiredOperationReaper();
 		if (reaperEnable)
 			expirationReaper.start();
 	}
 
-	// tryComplete DelayOperation else
+	// 泛型内部类不能直接创建数组, 只在这里做一次未检查的转换
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private WatcherList[] newWatcherLists(int shards) {
+		WatcherList[] lists = (WatcherList[]) new DelayedOperationPurgatory.WatcherList[shards];
+		for (int i = 0; i < shards; i++)
+			lists[i] = new WatcherList();
+		return lists;
+	}
+
+	/**
+	 * tryComplete DelayOperation else watch
+	 * @throws RejectedExecutionException 准入名额已满 (见 {@link AdmissionControl}), operation 没有被 watch
+	 */
 	public boolean tryCompleteElseWatch(T operation, List<Object> watchKeys) {
 		if (watchKeys.isEmpty())
 			throw new java.lang.AssertionError("assertion failed: The watch key list can't be empty");
+		operation.watchedBy(this);
 		boolean isCompletedByMe = operation.tryComplete();
-		if (isCompletedByMe)
+		if (isCompletedByMe) {
+			metrics.added.mark();
 			return true;
+		}
 		boolean watchCreated = false;
+		operation.watching(watchKeys);
+		admission.acquire(this, operation);
+		// 被准入控制拒绝的 operation 只计入 rejected
+		metrics.added.mark();
 		for (Object key : watchKeys) {
 			if (operation.isCompleted())
 				return false;
 			// operation 添加到 key 映射的 watchers 中
-			watchForOperation(key,operation);
+			watch(key,operation);
 			if (!watchCreated) {
 				watchCreated = true;
-				estimatedTotalOperations.incrementAndGet();
+				watcherList(key).estimatedTotalOperations.incrementAndGet();
 			}
 		}
 		isCompletedByMe = operation.maybeTryComplete();
@@ -93,23 +194,174 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> extends Loggi
 		return false;
 	}
 
+	/**
+	 * 批量版本的 tryCompleteElseWatch: 语义与逐个调用相同, 但每个 key 只查找、登记一次,
+	 * 每个分片的计数只更新一次, 未完成的 operation 通过一次 Timer.addAll 加入时间轮
+	 *
+	 * @param operations operation -> watch keys, 按迭代顺序处理
+	 * @return 每个 operation 是否由本次调用完成, 顺序与参数一致
+	 * @throws RejectedExecutionException 某个 operation 被准入控制拒绝; 本批中尚未完成的 operation 都不会被 watch
+	 */
+	public Map<T, Boolean> tryCompleteElseWatchAll(Map<T, List<Object>> operations) {
+		Map<T, Boolean> results = new LinkedHashMap<>(operations.size() * 2);
+		Map<Object, List<T>> operationsForKey = new HashMap<>();
+		List<T> pending = new ArrayList<>(operations.size());
+		int[] added = new int[watcherLists.length];
+		for (Map.Entry<T, List<Object>> entry : operations.entrySet()) {
+			T operation = entry.getKey();
+			List<Object> watchKeys = entry.getValue();
+			if (watchKeys.isEmpty())
+				throw new java.lang.AssertionError("assertion failed: The watch key list can't be empty");
+			operation.watchedBy(this);
+			if (operation.tryComplete()) {
+				results.put(operation, true);
+				continue;
+			}
+			results.put(operation, false);
+			operation.watching(watchKeys);
+			pending.add(operation);
+		}
+		metrics.added.mark(operations.size() - pending.size());
+		if (pending.isEmpty())
+			return results;
+		// 整批一次准入: 拒绝时不占用任何名额, 也不计入 added
+		admission.acquireAll(this, pending);
+		metrics.added.mark(pending.size());
+		for (T operation : pending) {
+			List<Object> watchKeys = operation.watchKeys();
+			for (Object key : watchKeys)
+				operationsForKey.computeIfAbsent(key, k -> new ArrayList<>()).add(operation);
+			added[shardIndex(watchKeys.get(0))] += 1;
+		}
+
+		for (Map.Entry<Object, List<T>> entry : operationsForKey.entrySet()) {
+			List<T> watching = entry.getValue();
+			watching.removeIf(DelayedOperation::isCompleted);
+			if (!watching.isEmpty())
+				watchForOperations(entry.getKey(), watching);
+		}
+		for (int i = 0; i < added.length; i++) {
+			if (added[i] > 0)
+				watcherLists[i].estimatedTotalOperations.addAndGet(added[i]);
+		}
+
+		List<T> delayed = new ArrayList<>(pending.size());
+		for (T operation : pending) {
+			if (operation.maybeTryComplete())
+				results.put(operation, true);
+			else if (!operation.isCompleted())
+				delayed.add(operation);
+		}
+		if (timerEnable && !delayed.isEmpty()) {
+			timeoutTimer.addAll(delayed);
+			for (T operation : delayed) {
+				if (operation.isCompleted())
+					operation.cancel();
+			}
+		}
+		return results;
+	}
+
 	// 获取 key 对应的 watchers , 并对 watchers 内的 DelayOperation 执行 maybeTryComplete()
+	// ConcurrentHashMap 的读取本身是线程安全的, 这里既不加锁也不分配 lambda
 	public int checkAndComplete(Object key) {
-		Watchers watchers = inReadLock(removeWatchersLock,()->watchersForKey.get(key));
+		Watchers watchers = watcherList(key).watchersForKey.get(key);
 		if (watchers == null)
 			return 0;
 		else
 			return watchers.tryCompleteWatched();
 	}
 
-	// watchers 个数
-	private Collection<Watchers> allWatchers() {
-		return inReadLock(removeWatchersLock,()->watchersForKey.values());
+	/**
+	 * 多个 key 同时有变化时使用: 汇总这些 key 上 watch 的 operation 并去重,
+	 * 每个仍未完成的 operation 最多执行一次 maybeTryComplete
+	 *
+	 * @return 本次调用完成的 operation 个数
+	 */
+	public int checkAndCompleteAll(Collection<Object> keys) {
+		// operation 的 equals 可能被覆写, 按引用去重
+		Set<T> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		int completed = 0;
+		for (Object key : keys) {
+			Watchers watchers = watcherList(key).watchersForKey.get(key);
+			if (watchers != null)
+				completed += watchers.tryCompleteWatched(visited);
+		}
+		return completed;
+	}
+
+	private WatcherList watcherList(Object key) {
+		return watcherLists[shardIndex(key)];
 	}
 
-	//  所有的 watchers 中的 DelayOperation 个数
+	private int shardIndex(Object key) {
+		int h = key.hashCode();
+		return ((h ^ (h >>> 16)) & 0x7fffffff) % watcherLists.length;
+	}
+
+	//  所有的 watchers 中的 DelayOperation 个数 (包括已完成但尚未清理的), 读取不需要遍历 watchers
 	public int watched() {
-		return allWatchers().stream().map(w->w.countWatched()).reduce((a,b)->a+b).get();
+		return (int) watchedOperations.sum();
+	}
+
+	// 含有已完成 operation、等待清理的 watchers 个数
+	public int dirtyWatchers() {
+		return dirtyCount.get();
+	}
+
+	public int shards() {
+		return watcherLists.length;
+	}
+
+	// 自上次 purge 以来登记过的 operation 个数的估计值, purge 的触发条件即它与 delayed() 的差超过 purgeInterval
+	public int estimatedTotalOperations() {
+		int estimated = purgeBaseline;
+		for (WatcherList wl : watcherLists)
+			estimated += wl.estimatedTotalOperations.get();
+		return estimated;
+	}
+
+	int expirationQueueDepth() {
+		return timeoutTimer.expirationQueueDepth();
+	}
+
+	public PurgatoryMetricsMBean metrics() {
+		return metrics;
+	}
+
+	CallbackDispatcher dispatcher() {
+		return dispatcher;
+	}
+
+	// 由 DelayedOperation 在完成时调用 (包括过期); watchKeys 不为 null 时 operation 可能仍留在这些 key 的 watchers 中
+	void recordCompletion(DelayedOperation operation, boolean expired, List<Object> watchKeys) {
+		if (expired)
+			metrics.expired.mark();
+		else
+			metrics.completed.mark();
+		recordRemoval(operation, watchKeys);
+	}
+
+	// 由 DelayedOperation 在被 cancelForKey 取消时调用: 它可能仍留在其它 key 的 watchers 中, 与完成一样等待清理
+	void recordCancellation(DelayedOperation operation, List<Object> watchKeys) {
+		recordRemoval(operation, watchKeys);
+	}
+
+	private void recordRemoval(DelayedOperation operation, List<Object> watchKeys) {
+		admission.release(operation);
+		if (watchKeys != null) {
+			for (Object key : watchKeys) {
+				Watchers watchers = watcherList(key).watchersForKey.get(key);
+				if (watchers != null)
+					watchers.markCompleted();
+			}
+		}
+		// 没有 reaper 时由完成的线程清理, 否则 dirtyWatchers 会一直引用早已删除的 watchers
+		if (!reaperEnable && dirtyCount.get() > purgeInterval)
+			purgeDirty(purgeBatch_default);
+		// 唤醒等待中的 reaper 恢复轮询, 已完成的 operation 不必等到下一个 bucket 到期才被清理
+		if (reaperParked.get() && reaperParked.compareAndSet(true, false))
+			timeoutTimer.wakeup();
 	}
 
 	// Delayed Operation 的个数
@@ -118,118 +370,353 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> extends Loggi
 		return timeoutTimer.size();
 	}
 
+	/**
+	 * 移除 key 的 watchers 并取消其中的 operation: 取消是终态, 同时 watch 其它 key 的 operation 也不会再被完成,
+	 * 其准入名额立即归还, 留在其它 key 上的引用与已完成的 operation 一样由 purge 清理
+	 * @return 该 key 上的 operation (包括已完成但尚未清理的); key 不存在时返回 null
+	 */
 	public List<T> cancelForKey(Object key) {
-		return inWriteLock(removeWatchersLock,()->{
-			Watchers watchers = watchersForKey.remove(key);
-			if (watchers != null)
-				return watchers.cancel();
-			else
-				return null;
-		});
+		Watchers watchers = watcherList(key).watchersForKey.remove(key);
+		if (watchers != null) {
+			List<T> cancelled = watchers.cancel();
+			for (T operation : cancelled)
+				operation.cancelWatching();
+			return cancelled;
+		} else
+			return null;
+	}
+
+	Time time() {
+		return time;
 	}
 
+	AdmissionControl admission() {
+		return admission;
+	}
+
+	/**
+	 * 直接把 operation 加入 key 的 watchers, 不经过 tryComplete、准入控制与时间轮。
+	 * key 被追加到 operation 的 watch key 中, operation 完成时这个 key 的 watchers 同样会被清理
+	 */
 	public boolean watchForOperation(Object key, T operation) {
-		return inReadLock(removeWatchersLock,()->{
+		operation.watchedBy(this);
+		operation.watchingKey(key);
+		Watchers watchers = watch(key, operation);
+		// 在追加 key 之后、放入 watchers 之前完成的 operation 没能标记这个 watchers
+		if (operation.isCompleted())
+			watchers.markCompleted();
+		return true;
+	}
+
+	private Watchers watch(Object key, T operation) {
+		WatcherList wl = watcherList(key);
+		while (true) {
 			// Watchers 不存在则新建，存在则获取
-			Watchers watchers = watchersForKey.getAndMaybePut(key);
-			return watchers.watch(operation);
-		});
+			Watchers watchers = wl.watchersForKey.getAndMaybePut(key);
+			if (watchers.watch(operation))
+				return watchers;
+			// 该 Watchers 已被标记为移除, 协助把它从 map 中删掉后重试
+			wl.watchersForKey.remove(key, watchers);
+		}
 	}
 
-	private void removeKeyIfEmpty(Object key,Watchers watchers) {
-		inWriteLock(removeWatchersLock,()->{
-			if (watchersForKey.get(key) != watchers)
-				return Void.class;
-			if (watchers != null && watchers.isEmpty())
-				watchersForKey.remove(key);
-			return Void.class;
-		});
+	private void watchForOperations(Object key, List<T> operations) {
+		WatcherList wl = watcherList(key);
+		while (true) {
+			Watchers watchers = wl.watchersForKey.getAndMaybePut(key);
+			if (watchers.watchAll(operations))
+				return;
+			wl.watchersForKey.remove(key, watchers);
+		}
 	}
 
 	public void shutdown() {
-		if (reaperEnable)
-			expirationReaper.shutdown();
+		if (reaperEnable) {
+			expirationReaper.initiateShutdown();
+			// reaper 可能在没有超时的等待中
+			timeoutTimer.wakeup();
+			expirationReaper.awaitShutdown();
+		}
 		timeoutTimer.shutdown();
+		JmxRegistry.unregister(metricsName);
+	}
+
+	// 一个分片: key -> Watchers 的映射
+	private class WatcherList {
+
+		private final Pool<Object,Watchers> watchersForKey = new Pool<>(k->new Watchers(k));
+		private final AtomicInteger estimatedTotalOperations = new AtomicInteger(0);
+		// 含有已完成 operation 的 watchers, 每个 watchers 在被清理之前只入队一次
+		private final ConcurrentLinkedQueue<Watchers> dirtyWatchers = new ConcurrentLinkedQueue<>();
+
+		private Collection<Watchers> allWatchers() {
+			return watchersForKey.values();
+		}
 	}
 
+	/*
+	 * key 的生命周期不依赖锁:
+	 *  size 记录队列中的 operation 个数, 在入队之前加一; size == -1 表示该 Watchers 已被移除。
+	 *  watch() 只在 size >= 0 时 CAS 加一, 因此 CAS(0, -1) 成功时队列必然为空且不会再有 operation 进入,
+	 *  此时可以安全地用 remove(key, this) 把它从 map 中删除。
+	 *  ConcurrentLinkedQueue 的 iterator.remove() 不是排他的, 所以同一时刻只允许抢到 removing 的线程删除元素,
+	 *  保证 size 的增减与队列内容严格一致; 其它线程只执行 maybeTryComplete, 留下的已完成 operation 由后续清理。
+	 */
 	public class Watchers {
 
 		private Object key;
 		// 一个 key 对应多个 DelayOperation
 		private ConcurrentLinkedQueue<T> operations= new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger(0);
+		private final AtomicBoolean removing = new AtomicBoolean(false);
+		// 是否已经在 dirtyWatchers 中
+		private final AtomicBoolean dirty = new AtomicBoolean(false);
 
 		public Watchers(Object key) {
 			this.key = key;
 		}
 
 		public int countWatched() {
-			return operations.size();
+			return Math.max(size.get(), 0);
 		}
 
 		public boolean isEmpty() {
-			return operations.isEmpty();
+			return size.get() <= 0;
 		}
 
+		// 返回 false 表示该 Watchers 已经被移除, 调用方需要重新获取
 		public boolean watch(T t) {
-			return operations.add(t);
+			int n;
+			do {
+				n = size.get();
+				if (n < 0)
+					return false;
+			} while (!size.compareAndSet(n, n + 1));
+			// 在入队之前计数, 与 size 一样保证先加后减
+			watchedOperations.increment();
+			operations.add(t);
+			return true;
+		}
+
+		public boolean watchAll(List<T> ts) {
+			int n;
+			do {
+				n = size.get();
+				if (n < 0)
+					return false;
+			} while (!size.compareAndSet(n, n + ts.size()));
+			watchedOperations.add(ts.size());
+			operations.addAll(ts);
+			return true;
 		}
 
 		public int tryCompleteWatched() {
+			return tryCompleteWatched(null);
+		}
+
+		// visited 不为 null 时, 已经在其它 key 上尝试过的 operation 不再重复 tryComplete
+		private int tryCompleteWatched(Set<T> visited) {
 			int completed = 0;
-			Iterator<T> it = operations.iterator();
-			while(it.hasNext()) {
-				T t = it.next();
-				if (t.isCompleted()) {
-					it.remove();
-				} else if (t.maybeTryComplete()) {
-					it.remove();
-					completed += 1;
+			boolean owner = removing.compareAndSet(false, true);
+			try {
+				Iterator<T> it = operations.iterator();
+				while(it.hasNext()) {
+					T t = it.next();
+					if (t.isCompleted()) {
+						if (owner)
+							remove(it);
+					} else if (visited != null && !visited.add(t)) {
+						continue;
+					} else if (t.maybeTryComplete()) {
+						if (owner)
+							remove(it);
+						completed += 1;
+					}
 				}
+			} finally {
+				if (owner)
+					removing.set(false);
 			}
-			if (operations.isEmpty())
-				removeKeyIfEmpty(key,this);
+			removeIfEmpty();
 			return completed;
 		}
 
+		// 由 cancelForKey 在把自己从 map 中删除之后调用, 返回其中的 operation 由调用方取消
 		public List<T> cancel() {
-			Iterator<T> it = operations.iterator();
-			List<T> cancelled = new ArrayList<>();
-			while (it.hasNext()) {
-				T t = it.next();
-				t.cancel();
-				it.remove();
-				cancelled.add(t);
+			while (!removing.compareAndSet(false, true))
+				Thread.yield();
+			try {
+				int n = size.getAndSet(-1);
+				if (n > 0)
+					watchedOperations.add(-n);
+				List<T> cancelled = new ArrayList<>(Math.max(n, 0));
+				// 已经 size 加一但尚未入队的 operation 也要等到并一起取消
+				while (cancelled.size() < n) {
+					T t = operations.poll();
+					if (t == null) {
+						Thread.yield();
+						continue;
+					}
+					cancelled.add(t);
+				}
+				return cancelled;
+			} finally {
+				removing.set(false);
 			}
-			return cancelled;
 		}
 
+		/**
+		 * 删除已完成的 operation
+		 * @return 删除的个数; 其它线程正持有 removing 时不做任何事, 返回 -1
+		 */
 		public int purgeCompleted() {
+			if (!removing.compareAndSet(false, true))
+				return -1;
 			int purged = 0;
-			Iterator<T> it  = operations.iterator();
-			while (it.hasNext()) {
-				T t = it.next();
-				if (t.isCompleted()) {
-					it.remove();
-					purged += 1;
+			try {
+				Iterator<T> it = operations.iterator();
+				while (it.hasNext()) {
+					T t = it.next();
+					if (t.isCompleted()) {
+						remove(it);
+						purged += 1;
+					}
 				}
+			} finally {
+				removing.set(false);
 			}
-			if (operations.isEmpty())
-				removeKeyIfEmpty(key,this);
+			removeIfEmpty();
 			return purged;
 		}
+
+		// 其中的 operation 完成时调用; 可能已被 tryCompleteWatched 顺带删除, 清理时按实际情况处理
+		// 已经为空或已被移除的 watchers 没有可清理的 operation, 不入队
+		private void markCompleted() {
+			if (size.get() <= 0)
+				return;
+			if (!dirty.get() && dirty.compareAndSet(false, true)) {
+				watcherList(key).dirtyWatchers.offer(this);
+				dirtyCount.incrementAndGet();
+			}
+		}
+
+		private void remove(Iterator<T> it) {
+			it.remove();
+			size.decrementAndGet();
+			watchedOperations.decrement();
+		}
+
+		private void removeIfEmpty() {
+			if (size.compareAndSet(0, -1))
+				watcherList(key).watchersForKey.remove(key, this);
+		}
 	}
 
 
 
 	public void advanceLock(long timeoutMs) {
 		timeoutTimer.advanceClock(timeoutMs);
-		if (estimatedTotalOperations.get() - delayed() > purgeInterval) {
-			estimatedTotalOperations.getAndSet(delayed());
+		int[] added = new int[watcherLists.length];
+		int estimatedTotalOperations = purgeBaseline;
+		for (int i = 0; i < watcherLists.length; i++) {
+			added[i] = watcherLists[i].estimatedTotalOperations.get();
+			estimatedTotalOperations += added[i];
+		}
+		int delayed = delayed();
+		if (estimatedTotalOperations - delayed > purgeInterval) {
+			// 只扣除本次读到的数量, 期间新增的 operation 计入下一轮
+			for (int i = 0; i < watcherLists.length; i++)
+				watcherLists[i].estimatedTotalOperations.addAndGet(-added[i]);
+			purgeBaseline = delayed;
+			purging = true;
 			debug("Begin purging watch lists");
-			int purged = allWatchers().stream().map(w->w.purgeCompleted()).reduce((a,b)->a+b).get();
+		} else if (delayed == 0 && hasDirtyWatchers()) {
+			// 时间轮已空: 顺带清理剩余的已完成 operation, 之后 reaper 可以不带超时地等待
+			purging = true;
+		}
+		if (purging)
+			purging = !purgeDirty(purgeBatch_default);
+	}
+
+	/**
+	 * 只清理含有已完成 operation 的 watchers, 每次最多遍历约 budget 个 operation (一个 watchers 总是完整遍历),
+	 * 剩余的留到下一次 advanceLock, 避免一次清理拖延时间轮的推进
+	 * @return dirty watchers 是否已全部清理; 其它线程正在清理时返回 false
+	 */
+	private boolean purgeDirty(int budget) {
+		if (!purgeRunning.compareAndSet(false, true))
+			return false;
+		try {
+			return purgeDirtyWatchers(budget);
+		} finally {
+			purgeRunning.set(false);
+		}
+	}
+
+	private boolean purgeDirtyWatchers(int budget) {
+		long startNs = time.nanoseconds();
+		int visited = 0;
+		int purged = 0;
+		boolean drained = true;
+		// 其它线程 (如同一个 key 上的 checkAndComplete) 正持有 removing 而没能清理的 watchers, 放回队列留到下一次
+		List<Watchers> contended = null;
+		for (int i = 0; i < watcherLists.length; i++) {
+			WatcherList wl = watcherLists[purgeCursor];
+			Watchers watchers;
+			while (visited < budget && (watchers = wl.dirtyWatchers.poll()) != null) {
+				dirtyCount.decrementAndGet();
+				// 先清除标记, 清理期间完成的 operation 会让它重新入队
+				watchers.dirty.set(false);
+				visited += watchers.countWatched();
+				int n = watchers.purgeCompleted();
+				if (n >= 0) {
+					purged += n;
+				} else {
+					if (contended == null)
+						contended = new ArrayList<>();
+					contended.add(watchers);
+				}
+			}
+			if (contended != null) {
+				for (Watchers skipped : contended)
+					skipped.markCompleted();
+				contended.clear();
+				drained = false;
+			}
+			if (visited >= budget) {
+				drained = false;
+				break;
+			}
+			purgeCursor = (purgeCursor + 1) % watcherLists.length;
+		}
+		metrics.recordPurge(purged, time.nanoseconds() - startNs);
+		if (drained)
 			debug(String.format("Purged %d elements from watch lists.",purged));
+		return drained;
+	}
+	/**
+	 * reaper 的等待时间: 没有可能需要清理的已完成 operation 时一直等到最早的 bucket 到期,
+	 * 更早的 bucket 或此后第一个完成的 operation 会唤醒它, 空闲的 purgatory 不会周期性地醒来;
+	 * 否则按 purgeCheckMs 轮询以便及时 purge。不使用时间轮时没有 bucket 可等, 始终轮询;
+	 * timeoutTimer 不支持 wakeup 时无法被唤醒 (包括 shutdown), 同样始终轮询
+	 */
+	private long reaperTimeoutMs() {
+		if (!timerEnable || purging || !timeoutTimer.supportsWakeup())
+			return purgeCheckMs;
+		int delayed = delayed();
+		if (delayed == 0 ? hasDirtyWatchers() : estimatedTotalOperations() > delayed)
+			return purgeCheckMs;
+		return Long.MAX_VALUE;
+	}
+
+	private boolean hasDirtyWatchers() {
+		for (WatcherList wl : watcherLists) {
+			if (!wl.dirtyWatchers.isEmpty())
+				return true;
 		}
+		return false;
 	}
+
 	private class ExpiredOperationReaper extends ShutdownableThread{
 
 		public ExpiredOperationReaper() {
@@ -237,7 +724,12 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> extends Loggi
 		}
 		@Override
 		public void doWork() {
-			advanceLock(200L);
+			// 先标记再检查: 检查之后完成的 operation 一定能看到标记并唤醒, wakeup 在等待开始之前发生也不会丢失
+			reaperParked.set(true);
+			long timeoutMs = reaperTimeoutMs();
+			if (timeoutMs != Long.MAX_VALUE)
+				reaperParked.set(false);
+			advanceLock(timeoutMs);
 		}
 	}
 }
@@ -0,0 +1,131 @@
+package com.cc.delay;
+
+import com.cc.common.metrics.Meter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	DelayedOperationPurgatory 的统计, 以 MBean 形式注册在 purgatory 名下
+ *
+ * 热路径上只有 LongAdder 的累加; watched 由 purgatory 在 watch 与清理时以 LongAdder 维护, delayed 取自 Timer 的计数,
+ * 读取时都不遍历 watchers。
+ */
+public class PurgatoryMetrics implements PurgatoryMetricsMBean {
+
+	private final DelayedOperationPurgatory<?> purgatory;
+
+	final Meter added = new Meter();
+	final Meter completed = new Meter();
+	final Meter expired = new Meter();
+
+	// purge 由 reaper 执行, 没有 reaper 时由完成 operation 的调用线程执行;
+	// purgeRunning 保证同一时刻只有一个线程在 purge, 这些 LongAdder 即使并发累加也是安全的
+	private final LongAdder purgeCount = new LongAdder();
+	private final LongAdder purgedElements = new LongAdder();
+	private final LongAdder totalPurgeNs = new LongAdder();
+	private volatile long lastPurgeNs = 0;
+
+	PurgatoryMetrics(DelayedOperationPurgatory<?> purgatory) {
+		this.purgatory = purgatory;
+	}
+
+	void recordPurge(int purged, long durationNs) {
+		purgeCount.increment();
+		purgedElements.add(purged);
+		totalPurgeNs.add(durationNs);
+		lastPurgeNs = durationNs;
+	}
+
+	@Override
+	public long getAddedCount() {
+		return added.count();
+	}
+
+	@Override
+	public double getAddedRate() {
+		return added.oneMinuteRate();
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return completed.count();
+	}
+
+	@Override
+	public double getCompletedRate() {
+		return completed.oneMinuteRate();
+	}
+
+	@Override
+	public long getExpiredCount() {
+		return expired.count();
+	}
+
+	@Override
+	public double getExpiredRate() {
+		return expired.oneMinuteRate();
+	}
+
+	@Override
+	public int getWatched() {
+		return purgatory.watched();
+	}
+
+	@Override
+	public int getDelayed() {
+		return purgatory.delayed();
+	}
+
+	@Override
+	public int getEstimatedTotalOperations() {
+		return purgatory.estimatedTotalOperations();
+	}
+
+	@Override
+	public long getPurgeCount() {
+		return purgeCount.sum();
+	}
+
+	@Override
+	public long getPurgedElements() {
+		return purgedElements.sum();
+	}
+
+	@Override
+	public long getLastPurgeDurationMs() {
+		return TimeUnit.NANOSECONDS.toMillis(lastPurgeNs);
+	}
+
+	@Override
+	public long getTotalPurgeDurationMs() {
+		return TimeUnit.NANOSECONDS.toMillis(totalPurgeNs.sum());
+	}
+
+	@Override
+	public int getOutstanding() {
+		return purgatory.admission().outstanding();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return purgatory.admission().rejectedCount();
+	}
+
+	@Override
+	public long getBlockedCount() {
+		return purgatory.admission().blockedCount();
+	}
+
+	@Override
+	public long getExpiredToAdmitCount() {
+		return purgatory.admission().expiredToAdmitCount();
+	}
+
+	@Override
+	public int getExpirationQueueDepth() {
+		return purgatory.expirationQueueDepth();
+	}
+}
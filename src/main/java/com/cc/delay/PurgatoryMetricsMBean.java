@@ -0,0 +1,67 @@
+package com.cc.delay;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	DelayedOperationPurgatory 的 JMX 视图
+ */
+public interface PurgatoryMetricsMBean {
+
+	/**
+	 * Operations registered through tryCompleteElseWatch / tryCompleteElseWatchAll,
+	 * including the ones completed immediately.
+	 */
+	long getAddedCount();
+
+	double getAddedRate();
+
+	/**
+	 * Operations completed before their deadline.
+	 */
+	long getCompletedCount();
+
+	double getCompletedRate();
+
+	long getExpiredCount();
+
+	double getExpiredRate();
+
+	int getWatched();
+
+	int getDelayed();
+
+	int getEstimatedTotalOperations();
+
+	long getPurgeCount();
+
+	long getPurgedElements();
+
+	long getLastPurgeDurationMs();
+
+	long getTotalPurgeDurationMs();
+
+	/**
+	 * Operations holding an admission slot, 0 when admission control is not configured.
+	 */
+	int getOutstanding();
+
+	/**
+	 * Operations rejected by admission control, after waiting under the BLOCK policy.
+	 */
+	long getRejectedCount();
+
+	/**
+	 * Admissions that had to wait for a slot under the BLOCK policy.
+	 */
+	long getBlockedCount();
+
+	/**
+	 * Operations expired early to make room under the EXPIRE_EARLIEST policy.
+	 */
+	long getExpiredToAdmitCount();
+
+	/**
+	 * Expired tasks waiting for the timer's task executor, or -1 if the timer doesn't expose it.
+	 */
+	int getExpirationQueueDepth();
+}
@@ -1,7 +1,15 @@
 package com.cc;
 
+import com.cc.common.utils.BoundedExecutor;
 import com.cc.common.utils.Logging;
 import com.cc.common.utils.Time;
+import com.cc.common.utils.timer.SystemTimer;
+import com.cc.common.utils.timer.Timer;
+import com.cc.common.utils.timer.TimerTask;
+import com.cc.delay.AdmissionControl;
+import com.cc.delay.CallbackDispatcher;
+import com.cc.delay.DelayedFutureOperation;
+import com.cc.delay.DelayedFuturePurgatory;
 import com.cc.delay.DelayedOperation;
 import com.cc.delay.DelayedOperationPurgatory;
 import org.junit.After;
@@ -9,12 +17,21 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -103,6 +120,7 @@ public class DelayOperationTest extends Logging {
 
 	@Test
 	public void  shouldCancelForKeyReturningCancelledOperations() {
+		assertEquals("empty purgatory", 0, purgatory.watched());
 		purgatory.tryCompleteElseWatch(new MockDelayedOperation(10000L), Arrays.asList("key"));
 		purgatory.tryCompleteElseWatch(new MockDelayedOperation(10000L),  Arrays.asList("key"));
 		purgatory.tryCompleteElseWatch(new MockDelayedOperation(10000L),  Arrays.asList("key2"));
@@ -113,6 +131,708 @@ public class DelayOperationTest extends Logging {
 		assertEquals(1, purgatory.watched());
 	}
 
+	// 完成或取消之后 watched() 立即扣减, 变空的 key 从 map 中删除 (再次 cancelForKey 返回 null), 之后同一个 key 可以重新 watch
+	@Test
+	public void testWatchedCleanup() {
+		// 关闭 reaper, 只由 checkAndComplete / cancelForKey 清理
+		DelayedOperationPurgatory<MockDelayedOperation> cleanup = new DelayedOperationPurgatory<>("cleanup",
+				DelayedOperationPurgatory.purgeInterval_default, false, true);
+		try {
+			MockDelayedOperation r1 = new MockDelayedOperation(100000L);
+			MockDelayedOperation r2 = new MockDelayedOperation(100000L);
+			assertFalse(cleanup.tryCompleteElseWatch(r1, Arrays.asList("test1", "test2")));
+			assertFalse(cleanup.tryCompleteElseWatch(r2, Arrays.asList("test1")));
+			assertEquals(3, cleanup.watched());
+
+			// r1 从 test1 中删除, test2 中仍有已完成的 r1
+			r1.completable = true;
+			assertEquals(1, cleanup.checkAndComplete("test1"));
+			assertEquals(2, cleanup.watched());
+
+			// 清理 test2 中已完成的 r1 后 test2 为空, 从 map 中删除
+			assertEquals(0, cleanup.checkAndComplete("test2"));
+			assertEquals(1, cleanup.watched());
+			assertNull(cleanup.cancelForKey("test2"));
+
+			assertEquals(Collections.singletonList(r2), cleanup.cancelForKey("test1"));
+			assertEquals(0, cleanup.watched());
+			assertNull(cleanup.cancelForKey("test1"));
+
+			// 被删除的 key 重新 watch 时使用新的 watchers
+			MockDelayedOperation r3 = new MockDelayedOperation(100000L);
+			assertFalse(cleanup.tryCompleteElseWatch(r3, Arrays.asList("test1")));
+			assertEquals(1, cleanup.watched());
+			r3.completable = true;
+			assertEquals(1, cleanup.checkAndComplete("test1"));
+			assertEquals(0, cleanup.watched());
+			assertNull(cleanup.cancelForKey("test1"));
+			assertEquals(0, cleanup.delayed());
+		} finally {
+			cleanup.shutdown();
+		}
+	}
+
+	@Test
+	public void testShardedPurgatory() {
+		DelayedOperationPurgatory<MockDelayedOperation> sharded = new DelayedOperationPurgatory<>("sharded",
+				new SystemTimer("sharded"), DelayedOperationPurgatory.purgeInterval_default, true, true, 8);
+		try {
+			assertEquals(8, sharded.shards());
+			List<MockDelayedOperation> ops = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				MockDelayedOperation op = new MockDelayedOperation(100000L);
+				assertFalse(sharded.tryCompleteElseWatch(op, Arrays.asList("key" + i, "key" + (i + 1))));
+				ops.add(op);
+			}
+			assertEquals(200, sharded.watched());
+			assertEquals(100, sharded.delayed());
+
+			ops.get(10).completable = true;
+			assertEquals("op10 satisfied through its second key", 1, sharded.checkAndComplete("key11"));
+			assertEquals(99, sharded.delayed());
+
+			List<MockDelayedOperation> cancelled = sharded.cancelForKey("key50");
+			assertEquals(2, cancelled.size());
+			assertEquals(97, sharded.delayed());
+		} finally {
+			sharded.shutdown();
+		}
+	}
+
+	@Test
+	public void testTryCompleteElseWatchAll() throws InterruptedException {
+		MockDelayedOperation r1 = new MockDelayedOperation(100000L);
+		MockDelayedOperation r2 = new MockDelayedOperation(100000L);
+		MockDelayedOperation r3 = new MockDelayedOperation(100000L);
+		MockDelayedOperation r4 = new MockDelayedOperation(20L);
+		r2.completable = true;
+		Map<MockDelayedOperation, List<Object>> batch = new LinkedHashMap<>();
+		batch.put(r1, Arrays.asList("test1"));
+		batch.put(r2, Arrays.asList("test1", "test2"));
+		batch.put(r3, Arrays.asList("test1", "test2", "test3"));
+		batch.put(r4, Arrays.asList("test4"));
+
+		Map<MockDelayedOperation, Boolean> results = purgatory.tryCompleteElseWatchAll(batch);
+		assertEquals(Arrays.asList(r1, r2, r3, r4), new ArrayList<>(results.keySet()));
+		assertEquals(Arrays.asList(false, true, false, false), new ArrayList<>(results.values()));
+		assertEquals("r2 completed before being watched", 5, purgatory.watched());
+		assertEquals(3, purgatory.delayed());
+
+		r3.completable = true;
+		assertEquals(1, purgatory.checkAndComplete("test3"));
+		assertEquals(2, purgatory.delayed());
+
+		Thread.sleep(1000);
+		assertTrue("r4 completed due to expiration", r4.isCompleted());
+		assertFalse(r1.isCompleted());
+	}
+
+	@Test
+	public void testCheckAndCompleteAll() {
+		MockDelayedOperation r1 = new MockDelayedOperation(100000L);
+		MockDelayedOperation r2 = new MockDelayedOperation(100000L);
+		MockDelayedOperation r3 = new MockDelayedOperation(100000L);
+		purgatory.tryCompleteElseWatch(r1, Arrays.asList("test1", "test2", "test3"));
+		purgatory.tryCompleteElseWatch(r2, Arrays.asList("test2", "test3"));
+		purgatory.tryCompleteElseWatch(r3, Arrays.asList("test4"));
+		r1.tryCompleteCalls = 0;
+		r2.tryCompleteCalls = 0;
+		r3.tryCompleteCalls = 0;
+
+		assertEquals(0, purgatory.checkAndCompleteAll(Arrays.asList("test1", "test2", "test3")));
+		assertEquals("r1 tried once across three keys", 1, r1.tryCompleteCalls);
+		assertEquals("r2 tried once across two keys", 1, r2.tryCompleteCalls);
+		assertEquals(0, r3.tryCompleteCalls);
+
+		r1.completable = true;
+		r2.completable = true;
+		assertEquals(2, purgatory.checkAndCompleteAll(Arrays.asList("test1", "test2", "test3", "test4")));
+		assertEquals(2, r1.tryCompleteCalls);
+		assertEquals(2, r2.tryCompleteCalls);
+		assertEquals(1, r3.tryCompleteCalls);
+		assertEquals(1, purgatory.watched());
+		assertEquals(1, purgatory.delayed());
+	}
+
+	@Test
+	public void testFutureOperation() throws Exception {
+		DelayedFuturePurgatory<String, FutureOperation> futures = new DelayedFuturePurgatory<>("futures");
+		try {
+			FutureOperation r1 = new FutureOperation(100000L);
+			FutureOperation r2 = new FutureOperation(20L);
+			CompletableFuture<String> f1 = futures.tryCompleteElseWatchAsync(r1, Arrays.asList("test1"));
+			CompletableFuture<Integer> length = f1.thenApply(String::length);
+			CompletableFuture<String> f2 = futures.tryCompleteElseWatchAsync(r2, Arrays.asList("test2"));
+			assertFalse(f1.isDone());
+
+			r1.result = "done";
+			assertEquals(1, futures.checkAndComplete("test1"));
+			assertEquals("done", f1.get(0, TimeUnit.MILLISECONDS));
+			assertEquals(Integer.valueOf(4), length.get(0, TimeUnit.MILLISECONDS));
+
+			try {
+				f2.get(5, TimeUnit.SECONDS);
+				fail("r2 should time out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+			r2.result = "too late";
+			assertFalse("expired operation can't be completed", r2.tryComplete());
+
+			// 不经 completeWith 的 forceComplete 不是超时
+			FutureOperation r3 = new FutureOperation(100000L);
+			CompletableFuture<String> f3 = futures.tryCompleteElseWatchAsync(r3, Arrays.asList("test3"));
+			assertTrue(r3.forceComplete());
+			try {
+				f3.get(0, TimeUnit.MILLISECONDS);
+				fail("r3 was completed without a result");
+			} catch (CancellationException e) {
+				// CompletableFuture.get 直接抛出 CancellationException
+			}
+		} finally {
+			futures.shutdown();
+		}
+	}
+
+	// cancelForKey 取消的 operation 的 future 以 CancellationException 结束, 串联的处理随之结束而不是一直挂起
+	@Test
+	public void testFutureOperationCancelled() throws Exception {
+		DelayedFuturePurgatory<String, FutureOperation> futures = new DelayedFuturePurgatory<>("cancelled-futures");
+		try {
+			FutureOperation op = new FutureOperation(100000L);
+			CompletableFuture<String> future = futures.tryCompleteElseWatchAsync(op, Arrays.asList("a", "b"));
+			CompletableFuture<Boolean> chained = future.handle((result, e) -> e instanceof CancellationException);
+			assertEquals(Collections.singletonList(op), futures.cancelForKey("a"));
+			assertTrue(future.isCancelled());
+			assertTrue(chained.get(0, TimeUnit.MILLISECONDS));
+
+			// 取消之后在其它 key 上满足条件也不会再完成
+			op.result = "too late";
+			assertEquals(0, futures.checkAndComplete("b"));
+			assertTrue(future.isCompletedExceptionally());
+		} finally {
+			futures.shutdown();
+		}
+	}
+
+	// 到期与 completeWith 竞争: future 以 result 结束当且仅当 completeWith 返回 true
+	@Test
+	public void testFutureOperationExpiryRace() throws Exception {
+		ExecutorService expirer = Executors.newSingleThreadExecutor();
+		try {
+			for (int i = 0; i < 2000; i++) {
+				FutureOperation op = new FutureOperation(100000L);
+				op.result = "done";
+				CountDownLatch start = new CountDownLatch(1);
+				Future<?> expiry = expirer.submit(() -> {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					op.run();
+				});
+				start.countDown();
+				boolean completed = op.tryComplete();
+				expiry.get(5, TimeUnit.SECONDS);
+				assertTrue(op.future().isDone());
+				if (completed) {
+					assertEquals("done", op.future().get());
+				} else {
+					try {
+						op.future().get();
+						fail("completeWith lost the race, the future should time out");
+					} catch (ExecutionException e) {
+						assertTrue(e.getCause() instanceof TimeoutException);
+					}
+				}
+			}
+		} finally {
+			expirer.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		MockDelayedOperation r1 = new MockDelayedOperation(100000L);
+		MockDelayedOperation r2 = new MockDelayedOperation(20L);
+		MockDelayedOperation r3 = new MockDelayedOperation(100000L);
+		r3.completable = true;
+		purgatory.tryCompleteElseWatch(r1, Arrays.asList("test1"));
+		purgatory.tryCompleteElseWatch(r2, Arrays.asList("test2"));
+		purgatory.tryCompleteElseWatch(r3, Arrays.asList("test3"));
+		r1.completable = true;
+		purgatory.checkAndComplete("test1");
+		for (int i = 0; i < 500 && !r2.isCompleted(); i++)
+			Thread.sleep(10);
+		assertTrue("r2 completed due to expiration", r2.isCompleted());
+
+		ObjectName name = new ObjectName("com.cc.delay:type=DelayedOperationPurgatory,name=\"mock\"");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(3L, server.getAttribute(name, "AddedCount"));
+		assertEquals(2L, server.getAttribute(name, "CompletedCount"));
+		assertEquals(1L, server.getAttribute(name, "ExpiredCount"));
+		assertEquals(0, server.getAttribute(name, "Delayed"));
+		assertEquals(0, server.getAttribute(name, "ExpirationQueueDepth"));
+		assertEquals(2, purgatory.estimatedTotalOperations());
+
+		purgatory.shutdown();
+		assertFalse("unregistered on shutdown", server.isRegistered(name));
+		purgatory = new DelayedOperationPurgatory<>("mock");
+	}
+
+	// purge 只清理含有已完成 operation 的 watchers, 每次 advanceLock 的工作量有上限, 剩余的在之后的调用中完成
+	@Test
+	public void testIncrementalPurge() {
+		DelayedOperationPurgatory<MockDelayedOperation> purging = new DelayedOperationPurgatory<>("purging",
+				new SystemTimer("purging"), 100, false, true);
+		try {
+			List<MockDelayedOperation> operations = new ArrayList<>();
+			for (int i = 0; i < 30_000; i++) {
+				MockDelayedOperation op = new MockDelayedOperation(100000L);
+				purging.tryCompleteElseWatch(op, Arrays.asList("key" + (i % 100)));
+				operations.add(op);
+			}
+			// 只有前一半的 key 上有 operation 完成
+			for (int i = 0; i < operations.size(); i++) {
+				if (i % 100 < 50 && (i / 100) % 2 == 0)
+					operations.get(i).forceComplete();
+			}
+			assertEquals(30_000, purging.watched());
+			assertEquals(22_500, purging.delayed());
+
+			purging.advanceLock(0L);
+			assertTrue("bounded by the purge batch", purging.watched() > 22_500);
+			assertTrue("only dirty watchers are visited", purging.watched() < 30_000);
+			for (int i = 0; i < 5 && purging.watched() > 22_500; i++)
+				purging.advanceLock(0L);
+			assertEquals(22_500, purging.watched());
+		} finally {
+			purging.shutdown();
+		}
+	}
+
+	// 没有 reaper 时, 每个请求一个 key 的 operation 完成后, dirtyWatchers 不会无限增长, 已完成的 operation 也会被清理
+	@Test
+	public void testDirtyWatchersWithoutReaper() {
+		DelayedOperationPurgatory<MockDelayedOperation> noReaper = new DelayedOperationPurgatory<>("no-reaper",
+				new SystemTimer("no-reaper"), 100, false, true);
+		try {
+			for (int i = 0; i < 10_000; i++) {
+				MockDelayedOperation op = new MockDelayedOperation(100000L);
+				noReaper.tryCompleteElseWatch(op, Arrays.asList("request" + i));
+				op.completable = true;
+				assertEquals(1, noReaper.checkAndComplete("request" + i));
+				assertTrue("dirty watchers are bounded", noReaper.dirtyWatchers() <= 101);
+			}
+			assertEquals(0, noReaper.watched());
+
+			// 由其它线程完成 (没有 checkAndComplete) 的 operation 由完成的线程按批清理
+			for (int i = 0; i < 10_000; i++) {
+				MockDelayedOperation op = new MockDelayedOperation(100000L);
+				noReaper.tryCompleteElseWatch(op, Arrays.asList("forced" + i));
+				assertTrue(op.forceComplete());
+				assertTrue("dirty watchers are bounded", noReaper.dirtyWatchers() <= 101);
+				assertTrue("completed operations are purged", noReaper.watched() <= 102);
+			}
+			assertEquals(0, noReaper.delayed());
+		} finally {
+			noReaper.shutdown();
+		}
+	}
+
+	// 空闲的 purgatory 中 reaper 不再周期性醒来, 新的 operation 加入时被唤醒并按时过期, shutdown 时被 wakeup 唤醒
+	@Test
+	public void testIdleReaper() throws Exception {
+		CountingTimer timer = new CountingTimer(new SystemTimer("idle"));
+		DelayedOperationPurgatory<MockDelayedOperation> idle = new DelayedOperationPurgatory<>("idle", timer,
+				DelayedOperationPurgatory.purgeInterval_default, true, true);
+		try {
+			Thread.sleep(100L);
+			int advanced = timer.advanced.get();
+			Thread.sleep(500L);
+			assertEquals("parked while idle", advanced, timer.advanced.get());
+
+			MockDelayedOperation op = new MockDelayedOperation(50L);
+			idle.tryCompleteElseWatch(op, Arrays.asList("key"));
+			for (int i = 0; i < 500 && !op.isCompleted(); i++)
+				Thread.sleep(10);
+			assertTrue("woken up by the new bucket", op.isCompleted());
+		} finally {
+			long start = System.currentTimeMillis();
+			idle.shutdown();
+			assertTrue("shutdown wakes the reaper", System.currentTimeMillis() - start < 5000L);
+		}
+	}
+
+	// reaper 没有 bucket 到期可等时, 之后完成的 operation 唤醒它, 已完成的 operation 不会一直留在 watchers 中
+	@Test
+	public void testParkedReaperWokenByCompletion() throws Exception {
+		CountingTimer timer = new CountingTimer(new SystemTimer("parked"));
+		DelayedOperationPurgatory<MockDelayedOperation> parked = new DelayedOperationPurgatory<>("parked", timer,
+				10, true, true);
+		try {
+			List<MockDelayedOperation> operations = new ArrayList<>();
+			for (int i = 0; i < 30; i++) {
+				MockDelayedOperation op = new MockDelayedOperation(100000L);
+				parked.tryCompleteElseWatch(op, Arrays.asList("key" + i));
+				operations.add(op);
+			}
+			Thread.sleep(100L);
+			int advanced = timer.advanced.get();
+			Thread.sleep(300L);
+			assertEquals("parked until the next bucket", advanced, timer.advanced.get());
+
+			for (int i = 0; i < 20; i++)
+				assertTrue(operations.get(i).forceComplete());
+			for (int i = 0; i < 500 && parked.watched() > 10; i++)
+				Thread.sleep(10);
+			assertEquals("completed operations purged without waiting for a bucket", 10, parked.watched());
+			assertEquals(0, parked.dirtyWatchers());
+		} finally {
+			parked.shutdown();
+		}
+	}
+
+	// timeoutTimer 不支持 wakeup 时 reaper 不能无限等待: 仍按 purgeCheckMs 轮询, 已完成的 operation 被清理, shutdown 不会挂起
+	@Test(timeout = 10000L)
+	public void testReaperWithoutWakeup() throws Exception {
+		NoWakeupTimer timer = new NoWakeupTimer(new SystemTimer("no-wakeup"));
+		DelayedOperationPurgatory<MockDelayedOperation> polling = new DelayedOperationPurgatory<>("no-wakeup", timer,
+				10, true, true);
+		try {
+			List<MockDelayedOperation> operations = new ArrayList<>();
+			for (int i = 0; i < 30; i++) {
+				MockDelayedOperation op = new MockDelayedOperation(100000L);
+				polling.tryCompleteElseWatch(op, Arrays.asList("key" + i));
+				operations.add(op);
+			}
+			Thread.sleep(300L);
+			for (int i = 0; i < 20; i++)
+				assertTrue(operations.get(i).forceComplete());
+			for (int i = 0; i < 500 && polling.watched() > 10; i++)
+				Thread.sleep(10);
+			assertEquals(10, polling.watched());
+		} finally {
+			polling.shutdown();
+		}
+	}
+
+	// 直接通过 watchForOperation watch 的 operation 完成后, 其 watchers 同样被标记并清理
+	@Test
+	public void testWatchForOperationPurged() throws Exception {
+		MockDelayedOperation direct = new MockDelayedOperation(100000L);
+		MockDelayedOperation both = new MockDelayedOperation(100000L);
+		assertTrue(purgatory.watchForOperation("direct", direct));
+		assertFalse(purgatory.tryCompleteElseWatch(both, Arrays.asList("watched")));
+		assertTrue(purgatory.watchForOperation("direct", both));
+		assertEquals(3, purgatory.watched());
+
+		assertTrue(direct.forceComplete());
+		assertTrue(both.forceComplete());
+		for (int i = 0; i < 500 && purgatory.watched() > 0; i++)
+			Thread.sleep(10);
+		assertEquals(0, purgatory.watched());
+		assertEquals(0, purgatory.dirtyWatchers());
+	}
+
+	// watchForOperation 追加的 key 没有占用准入名额, 完成时也不归还这个 key 的名额
+	@Test
+	public void testWatchForOperationAdmission() {
+		DelayedOperationPurgatory<MockDelayedOperation> limited = limitedPurgatory("watch-direct",
+				new AdmissionControl(10, 1, AdmissionControl.Policy.REJECT, 0L));
+		try {
+			MockDelayedOperation op = new MockDelayedOperation(100000L);
+			limited.tryCompleteElseWatch(op, Arrays.asList("a"));
+			limited.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("b"));
+			limited.watchForOperation("b", op);
+			assertTrue(op.forceComplete());
+			assertEquals(1, limited.metrics().getOutstanding());
+			assertRejected(limited, new MockDelayedOperation(100000L), "b");
+			limited.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("a"));
+		} finally {
+			limited.shutdown();
+		}
+	}
+
+	// 名额用尽时按 policy 拒绝、强制过期截止时间最早的 operation 或等待; 完成与取消的 operation 归还名额
+	@Test
+	public void testAdmissionControl() throws Exception {
+		DelayedOperationPurgatory<MockDelayedOperation> rejecting = limitedPurgatory("rejecting",
+				new AdmissionControl(4, 2, AdmissionControl.Policy.REJECT, 0L));
+		try {
+			MockDelayedOperation a1 = new MockDelayedOperation(100000L);
+			rejecting.tryCompleteElseWatch(a1, Arrays.asList("a"));
+			rejecting.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("a"));
+			assertRejected(rejecting, new MockDelayedOperation(100000L), "a");
+			rejecting.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("b"));
+			rejecting.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("c"));
+			assertRejected(rejecting, new MockDelayedOperation(100000L), "d");
+			assertEquals(4, rejecting.metrics().getOutstanding());
+
+			a1.completable = true;
+			rejecting.checkAndComplete("a");
+			rejecting.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("a"));
+			assertEquals(2, rejecting.cancelForKey("b").size() + rejecting.cancelForKey("c").size());
+			assertEquals(2, rejecting.metrics().getOutstanding());
+			assertEquals(2L, rejecting.metrics().getRejectedCount());
+			assertEquals("rejected operations are not counted as added", 5L, rejecting.metrics().getAddedCount());
+		} finally {
+			rejecting.shutdown();
+		}
+
+		DelayedOperationPurgatory<MockDelayedOperation> expiring = limitedPurgatory("expiring",
+				new AdmissionControl(3, 1, AdmissionControl.Policy.EXPIRE_EARLIEST, 0L));
+		try {
+			MockDelayedOperation late = new MockDelayedOperation(50000L);
+			MockDelayedOperation early = new MockDelayedOperation(10000L);
+			MockDelayedOperation middle = new MockDelayedOperation(30000L);
+			expiring.tryCompleteElseWatch(late, Arrays.asList("k1"));
+			expiring.tryCompleteElseWatch(early, Arrays.asList("k2"));
+			// k1 已满: 强制过期 k1 上的 operation, 即使其它 key 上有更早到期的
+			expiring.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("k1"));
+			assertTrue(late.isCompleted());
+			assertFalse(early.isCompleted());
+			// 总数已满: 强制过期所有 operation 中最早到期的
+			expiring.tryCompleteElseWatch(middle, Arrays.asList("k3"));
+			expiring.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("k4"));
+			assertTrue(early.isCompleted());
+			assertFalse(middle.isCompleted());
+			assertEquals(3, expiring.metrics().getOutstanding());
+			assertEquals(2L, expiring.metrics().getExpiredToAdmitCount());
+			assertEquals(2L, expiring.metrics().getExpiredCount());
+			assertEquals(0L, expiring.metrics().getRejectedCount());
+		} finally {
+			expiring.shutdown();
+		}
+
+		DelayedOperationPurgatory<MockDelayedOperation> blocking = limitedPurgatory("blocking",
+				new AdmissionControl(1, Integer.MAX_VALUE, AdmissionControl.Policy.BLOCK, 200L));
+		ExecutorService completer = Executors.newSingleThreadExecutor();
+		try {
+			MockDelayedOperation holder = new MockDelayedOperation(100000L);
+			blocking.tryCompleteElseWatch(holder, Arrays.asList("key"));
+			long start = System.currentTimeMillis();
+			assertRejected(blocking, new MockDelayedOperation(100000L), "other");
+			assertTrue("waited for the block timeout", System.currentTimeMillis() - start >= 150L);
+
+			completer.submit(() -> {
+				Thread.sleep(50L);
+				return holder.forceComplete();
+			});
+			blocking.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("other"));
+			assertTrue(holder.isCompleted());
+			assertEquals(1, blocking.metrics().getOutstanding());
+			assertEquals(2L, blocking.metrics().getBlockedCount());
+			assertEquals(1L, blocking.metrics().getRejectedCount());
+
+			// 超过上限的一批永远无法准入: 立即拒绝, 不等待也不占用名额
+			Map<MockDelayedOperation, List<Object>> batch = new LinkedHashMap<>();
+			batch.put(new MockDelayedOperation(100000L), Arrays.asList("b1"));
+			batch.put(new MockDelayedOperation(100000L), Arrays.asList("b2"));
+			int watched = blocking.watched();
+			start = System.currentTimeMillis();
+			try {
+				blocking.tryCompleteElseWatchAll(batch);
+				fail("a batch larger than the limit should be rejected");
+			} catch (RejectedExecutionException e) {
+				assertTrue("rejected without waiting", System.currentTimeMillis() - start < 150L);
+			}
+			assertEquals(1, blocking.metrics().getOutstanding());
+			assertEquals(2L, blocking.metrics().getBlockedCount());
+			assertEquals(watched, blocking.watched());
+		} finally {
+			completer.shutdownNow();
+			blocking.shutdown();
+		}
+	}
+
+	// 某个 key 已满时从该 key 的索引中选择最早到期的 operation, 其它 key 上的记录随之删除
+	@Test
+	public void testExpireEarliestPerKey() {
+		DelayedOperationPurgatory<MockDelayedOperation> expiring = limitedPurgatory("expiring-per-key",
+				new AdmissionControl(Integer.MAX_VALUE, 2, AdmissionControl.Policy.EXPIRE_EARLIEST, 0L));
+		try {
+			MockDelayedOperation late = new MockDelayedOperation(50000L);
+			MockDelayedOperation early = new MockDelayedOperation(10000L);
+			MockDelayedOperation other = new MockDelayedOperation(70000L);
+			expiring.tryCompleteElseWatch(late, Arrays.asList("k", "x"));
+			expiring.tryCompleteElseWatch(early, Arrays.asList("k", "y"));
+			expiring.tryCompleteElseWatch(other, Arrays.asList("x"));
+			expiring.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("k"));
+			assertTrue(early.isCompleted());
+			assertFalse(late.isCompleted());
+			// x 已满: late 比 other 先到期
+			expiring.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("x"));
+			assertTrue(late.isCompleted());
+			assertFalse(other.isCompleted());
+			assertEquals(3, expiring.metrics().getOutstanding());
+			assertEquals(2L, expiring.metrics().getExpiredToAdmitCount());
+		} finally {
+			expiring.shutdown();
+		}
+	}
+
+	// cancelForKey 取消同时 watch 其它 key 的 operation: 名额立即归还, 其它 key 上不会再完成它, 引用由清理删除
+	@Test
+	public void testCancelForKeyWithOtherKeys() {
+		DelayedOperationPurgatory<MockDelayedOperation> limited = limitedPurgatory("cancelling",
+				new AdmissionControl(2, 1, AdmissionControl.Policy.REJECT, 0L));
+		try {
+			MockDelayedOperation op = new MockDelayedOperation(100000L);
+			limited.tryCompleteElseWatch(op, Arrays.asList("a", "b"));
+			assertEquals(1, limited.metrics().getOutstanding());
+			assertRejected(limited, new MockDelayedOperation(100000L), "b");
+
+			assertEquals(Collections.singletonList(op), limited.cancelForKey("a"));
+			assertTrue(op.isCompleted());
+			assertEquals(0, limited.metrics().getOutstanding());
+			assertEquals(0, limited.delayed());
+			// b 的名额也已归还
+			limited.tryCompleteElseWatch(new MockDelayedOperation(100000L), Arrays.asList("b"));
+
+			int calls = op.tryCompleteCalls;
+			op.completable = true;
+			assertEquals("cancelled operation is not completed through its other key", 0, limited.checkAndComplete("b"));
+			assertEquals(calls, op.tryCompleteCalls);
+			assertEquals(1, limited.watched());
+			assertEquals(0L, limited.metrics().getCompletedCount());
+		} finally {
+			limited.shutdown();
+		}
+	}
+
+	// operation 在 tryComplete 之后、准入完成之前被其它线程完成: 完成时它还没有占用名额, 准入之后必须归还, 名额不能泄漏
+	@Test
+	public void testAdmissionCompletedWhileAcquiring() throws Exception {
+		AdmissionControl admission = new AdmissionControl(1, Integer.MAX_VALUE, AdmissionControl.Policy.BLOCK, 5000L);
+		DelayedOperationPurgatory<MockDelayedOperation> blocking = limitedPurgatory("acquiring", admission);
+		service = Executors.newSingleThreadExecutor();
+		try {
+			MockDelayedOperation holder = new MockDelayedOperation(100000L);
+			blocking.tryCompleteElseWatch(holder, Arrays.asList("key"));
+			MockDelayedOperation op = new MockDelayedOperation(100000L);
+			Future<Boolean> watching = service.submit(() -> blocking.tryCompleteElseWatch(op, Arrays.asList("other")));
+			// op 已经 tryComplete 并在等待名额时被完成
+			while (admission.blockedCount() == 0)
+				Thread.sleep(1L);
+			assertTrue(op.forceComplete());
+			assertEquals(1, admission.outstanding());
+			assertTrue(holder.forceComplete());
+			assertFalse(watching.get(5, TimeUnit.SECONDS));
+			assertEquals(0, admission.outstanding());
+		} finally {
+			blocking.shutdown();
+		}
+	}
+
+	private DelayedOperationPurgatory<MockDelayedOperation> limitedPurgatory(String name, AdmissionControl admission) {
+		return new DelayedOperationPurgatory<>(name, new SystemTimer(name), DelayedOperationPurgatory.purgeInterval_default,
+				false, true, 1, CallbackDispatcher.INLINE, Time.SYSTEM, admission);
+	}
+
+	private void assertRejected(DelayedOperationPurgatory<MockDelayedOperation> limited, MockDelayedOperation op, Object key) {
+		try {
+			limited.tryCompleteElseWatch(op, Arrays.asList(key));
+			fail("operation on " + key + " should be rejected");
+		} catch (RejectedExecutionException e) {
+			assertFalse(op.isCompleted());
+		}
+	}
+
+	// 一类 operation 的 onComplete 阻塞时, 既不能阻塞 checkAndComplete 的调用线程, 也不能影响其它类型的回调与过期
+	@Test
+	public void testCallbackBulkheads() throws Exception {
+		BoundedExecutor callbacks = new BoundedExecutor("callbacks", 1, 16);
+		BoundedExecutor slow = new BoundedExecutor("slow-callbacks", 1, 16);
+		CallbackDispatcher dispatcher = new CallbackDispatcher(callbacks, callbacks)
+				.bulkhead(BlockingOperation.class, slow);
+		DelayedOperationPurgatory<MockDelayedOperation> dispatched = new DelayedOperationPurgatory<>("dispatched",
+				new SystemTimer("dispatched"), DelayedOperationPurgatory.purgeInterval_default, true, true, 1, dispatcher);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			BlockingOperation blocking = new BlockingOperation(100000L, release);
+			CallbackOperation fast = new CallbackOperation(100000L);
+			CallbackOperation expiring = new CallbackOperation(20L);
+			dispatched.tryCompleteElseWatch(blocking, Arrays.asList("test1"));
+			dispatched.tryCompleteElseWatch(fast, Arrays.asList("test1"));
+			dispatched.tryCompleteElseWatch(expiring, Arrays.asList("test2"));
+
+			blocking.completable = true;
+			fast.completable = true;
+			assertEquals("completion doesn't wait for onComplete", 2, dispatched.checkAndComplete("test1"));
+			assertTrue(fast.completedLatch.await(5, TimeUnit.SECONDS));
+			assertTrue("expiration isn't held up by the blocked bulkhead", expiring.expiredLatch.await(5, TimeUnit.SECONDS));
+			assertTrue("onComplete runs before onExpiration", expiring.completedLatch.getCount() == 0);
+			assertFalse(blocking.onCompleteFinished);
+			assertEquals(0, slow.queueDepth());
+			assertEquals(2, callbacks.submitted());
+
+			// shutdown 之后的回调在提交线程上执行, 不会丢失
+			callbacks.shutdown();
+			CallbackOperation late = new CallbackOperation(100000L);
+			dispatched.tryCompleteElseWatch(late, Arrays.asList("test3"));
+			late.completable = true;
+			assertEquals(1, dispatched.checkAndComplete("test3"));
+			assertEquals(0, late.completedLatch.getCount());
+			assertEquals(1, callbacks.ranAfterShutdown());
+			assertEquals(0, callbacks.saturated());
+		} finally {
+			release.countDown();
+			dispatched.shutdown();
+			callbacks.shutdown();
+			slow.shutdown();
+		}
+		try {
+			CallbackDispatcher.INLINE.bulkhead(BlockingOperation.class, slow);
+			fail("the shared INLINE dispatcher can't have bulkheads");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	// watch 与 key 的移除 (完成后清空 / cancelForKey) 并发进行时, 不能丢失任何 operation:
+	// 没有完成的 operation 必须恰好被 cancelForKey 返回一次
+	@Test
+	public void testConcurrentWatchAndKeyRemoval() throws Exception {
+		service = Executors.newFixedThreadPool(4);
+		int perThread = 2000;
+		List<MockDelayedOperation> all = Collections.synchronizedList(new ArrayList<>());
+		Map<MockDelayedOperation, Boolean> cancelled = Collections.synchronizedMap(new IdentityHashMap<>());
+		AtomicInteger duplicates = new AtomicInteger(0);
+		Consumer<List<MockDelayedOperation>> collect = ops -> {
+			if (ops != null)
+				for (MockDelayedOperation op : ops)
+					if (cancelled.put(op, true) != null)
+						duplicates.incrementAndGet();
+		};
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			futures.add(service.submit(() -> {
+				for (int i = 0; i < perThread; i++) {
+					String key = "key" + (i % 4);
+					MockDelayedOperation op = new MockDelayedOperation(100000L);
+					all.add(op);
+					purgatory.tryCompleteElseWatch(op, Arrays.asList(key));
+					if (i % 3 == 0) {
+						op.completable = true;
+						purgatory.checkAndComplete(key);
+					} else if (i % 3 == 1) {
+						collect.accept(purgatory.cancelForKey(key));
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+		for (int i = 0; i < 4; i++)
+			collect.accept(purgatory.cancelForKey("key" + i));
+
+		assertEquals(0, duplicates.get());
+		assertEquals(0, purgatory.watched());
+		for (MockDelayedOperation op : all)
+			assertTrue("operation lost", op.isCompleted() || cancelled.containsKey(op));
+	}
 
 	// 多个线程调度 一个 DelayOperation.maybeTryComplete(), 产生的锁问题
 	@Test
@@ -163,6 +883,68 @@ public class DelayOperationTest extends Logging {
 		assertTrue("Operation should have completed", op.isCompleted());
 	}
 
+	// 不传入 lock 时 tryComplete 同样互斥执行, 并发请求不会丢失; 传入的 lock 被其它线程持有时不阻塞
+	@Test
+	public void testTryCompleteWithoutLock() throws Exception {
+		AtomicInteger running = new AtomicInteger(0);
+		AtomicInteger maxRunning = new AtomicInteger(0);
+		AtomicInteger attempts = new AtomicInteger(0);
+		MockDelayedOperation op = new MockDelayedOperation(100000L) {
+			@Override
+			public boolean tryComplete() {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.yield();
+					return attempts.incrementAndGet() >= 2000 && forceComplete();
+				} finally {
+					running.decrementAndGet();
+				}
+			}
+		};
+		purgatory.tryCompleteElseWatch(op, Arrays.asList("key"));
+		ExecutorService checkers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 4; i++)
+				futures.add(checkers.submit(() -> {
+					while (!op.isCompleted())
+						purgatory.checkAndComplete("key");
+				}));
+			for (Future<?> future : futures)
+				future.get(30, TimeUnit.SECONDS);
+		} finally {
+			checkers.shutdownNow();
+		}
+		assertEquals("tryComplete should never run concurrently", 1, maxRunning.get());
+
+		ReentrantLock shared = new ReentrantLock();
+		MockDelayedOperation locked = new MockDelayedOperation(100000L, shared);
+		purgatory.tryCompleteElseWatch(locked, Arrays.asList("locked"));
+		locked.completable = true;
+		int calls = locked.tryCompleteCalls;
+		CountDownLatch held = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		Thread holder = new Thread(() -> {
+			shared.lock();
+			try {
+				held.countDown();
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				shared.unlock();
+			}
+		});
+		holder.start();
+		held.await();
+		assertEquals("should not block on the shared lock", 0, purgatory.checkAndComplete("locked"));
+		assertEquals(calls, locked.tryCompleteCalls);
+		done.countDown();
+		holder.join();
+		assertEquals(1, purgatory.checkAndComplete("locked"));
+		assertTrue(locked.isCompleted());
+	}
+
 	@Test
 	public void  testTryCompleteWithMultipleThreads(){
 		ScheduledExecutorService service = Executors.newScheduledThreadPool(20);
@@ -208,13 +990,131 @@ public class DelayOperationTest extends Logging {
 		return future;
 	}
 
+	class FutureOperation extends DelayedFutureOperation<String> {
+		volatile String result = null;
+
+		public FutureOperation(long delayMS) {
+			super(delayMS);
+		}
+
+		@Override
+		public boolean tryComplete() {
+			if (result != null)
+				return completeWith(result);
+			return false;
+		}
+	}
+
+	class CallbackOperation extends MockDelayedOperation {
+		final CountDownLatch completedLatch = new CountDownLatch(1);
+		final CountDownLatch expiredLatch = new CountDownLatch(1);
+
+		public CallbackOperation(long delayMS) {
+			super(delayMS);
+		}
+
+		@Override
+		public void onExpiration() {
+			expiredLatch.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			completedLatch.countDown();
+		}
+	}
+
+	class BlockingOperation extends MockDelayedOperation {
+		private final CountDownLatch release;
+		volatile boolean onCompleteFinished = false;
+
+		public BlockingOperation(long delayMS, CountDownLatch release) {
+			super(delayMS);
+			this.release = release;
+		}
+
+		@Override
+		public void onComplete() {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			onCompleteFinished = true;
+		}
+	}
+
+	// 统计 advanceClock 的调用次数
+	static class CountingTimer implements Timer {
+
+		private final Timer timer;
+		final AtomicInteger advanced = new AtomicInteger(0);
+
+		CountingTimer(Timer timer) {
+			this.timer = timer;
+		}
+
+		@Override
+		public void add(TimerTask timerTask) {
+			timer.add(timerTask);
+		}
+
+		@Override
+		public boolean advanceClock(long timeoutMs) {
+			advanced.incrementAndGet();
+			return timer.advanceClock(timeoutMs);
+		}
+
+		@Override
+		public void wakeup() {
+			timer.wakeup();
+		}
+
+		@Override
+		public boolean supportsWakeup() {
+			return timer.supportsWakeup();
+		}
+
+		@Override
+		public int size() {
+			return timer.size();
+		}
+
+		@Override
+		public void shutdown() {
+			timer.shutdown();
+		}
+	}
+
+	// wakeup 不起作用的 Timer, 与没有覆写 wakeup 的实现相同
+	static class NoWakeupTimer extends CountingTimer {
+
+		NoWakeupTimer(Timer timer) {
+			super(timer);
+		}
+
+		@Override
+		public void wakeup() {
+		}
+
+		@Override
+		public boolean supportsWakeup() {
+			return false;
+		}
+	}
+
 	class MockDelayedOperation extends DelayedOperation{
 		boolean completable = false;
+		int tryCompleteCalls = 0;
 
 		public MockDelayedOperation(long delayMS) {
 			super(delayMS);
 		}
 
+		public MockDelayedOperation(long delayMS, Lock lock) {
+			super(delayMS, lock);
+		}
+
 		@Override
 		public void onExpiration() {
 			System.out.println("expiration deal");
@@ -227,6 +1127,7 @@ public class DelayOperationTest extends Logging {
 
 		@Override
 		public boolean tryComplete() {
+			tryCompleteCalls += 1;
 			if (completable)
 				return forceComplete();
 			return false;
@@ -0,0 +1,764 @@
+package com.cc;
+
+import com.cc.common.utils.CachedTime;
+import com.cc.common.utils.MockTime;
+import com.cc.common.utils.Time;
+import com.cc.common.utils.timer.DurableTimer;
+import com.cc.common.utils.timer.DurableTimerTask;
+import com.cc.common.utils.timer.GeometryTuner;
+import com.cc.common.utils.timer.HandleTimer;
+import com.cc.common.utils.timer.LaneExecutor;
+import com.cc.common.utils.timer.Priority;
+import com.cc.common.utils.timer.SystemTimer;
+import com.cc.common.utils.timer.TimerMetrics;
+import com.cc.common.utils.timer.TimerTask;
+import com.cc.common.utils.timer.TimerTaskEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	SystemTimer 的测试
+ */
+public class TimerTest {
+
+	private SystemTimer timer = null;
+
+	@Before
+	public void setUp() {
+		timer = new SystemTimer("test");
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdown();
+	}
+
+	@Test
+	public void testAddAll() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(40);
+		AtomicInteger fired = new AtomicInteger(0);
+		List<TestTask> tasks = new ArrayList<>();
+		// 覆盖已过期、第一层以及多个上层时间轮
+		for (int i = 0; i < 50; i++)
+			tasks.add(new TestTask(i * 10L, fired, latch));
+		timer.addAll(tasks);
+		for (int i = 40; i < 50; i++)
+			tasks.get(i).cancel();
+		assertTrue(timer.size() <= 40);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (latch.getCount() > 0 && System.currentTimeMillis() < deadline)
+			timer.advanceClock(200L);
+		assertTrue(latch.await(0, TimeUnit.MILLISECONDS));
+		assertEquals(0, timer.size());
+		assertEquals("cancelled tasks never fire", 40, fired.get());
+	}
+
+	@Test
+	public void testInstrumentation() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(10);
+		AtomicInteger fired = new AtomicInteger(0);
+		// 超出第一层 200ms 的范围, 需要经上层时间轮 cascade 下来
+		for (int i = 0; i < 10; i++)
+			timer.add(new TestTask(250L + i * 50L, fired, latch));
+		assertTrue(timer.levels() >= 2);
+		long[] occupancy = timer.occupancy();
+		assertEquals(timer.levels(), occupancy.length);
+		assertEquals(timer.size(), Arrays.stream(occupancy).sum());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (latch.getCount() > 0 && System.currentTimeMillis() < deadline)
+			timer.advanceClock(200L);
+		assertTrue(latch.await(0, TimeUnit.MILLISECONDS));
+
+		TimerMetrics metrics = timer.metrics();
+		assertEquals(0, Arrays.stream(metrics.getBucketOccupancy()).sum());
+		assertEquals(0L, metrics.getCascadedEntries()[0]);
+		assertTrue("entries cascaded from overflow wheels", Arrays.stream(metrics.getCascadedEntries()).sum() >= 10);
+		assertTrue(metrics.firingLagMs().count() > 0);
+		assertTrue(metrics.writeLockHoldUs().count() > 0);
+		assertEquals(10L, metrics.getExpiredCount());
+	}
+
+	// 以虚拟时间驱动: 任务只在 MockTime 推进到其所在 bucket 之后才会过期, 与真实时间无关
+	@Test
+	public void testMockTime() throws InterruptedException {
+		MockTime time = new MockTime();
+		SystemTimer mockTimer = new SystemTimer("mock-time", time);
+		try {
+			CountDownLatch first = new CountDownLatch(1);
+			CountDownLatch rest = new CountDownLatch(2);
+			AtomicInteger fired = new AtomicInteger(0);
+			mockTimer.add(new TestTask(100L, fired, first));
+			mockTimer.add(new TestTask(1000L, fired, rest));
+			mockTimer.add(new TestTask(3_600_000L, fired, rest));
+
+			time.sleep(50L);
+			assertFalse(mockTimer.advanceClock(0L));
+			time.sleep(50L);
+			assertTrue(mockTimer.advanceClock(0L));
+			assertTrue(first.await(5, TimeUnit.SECONDS));
+			assertEquals(2, mockTimer.size());
+
+			time.sleep(3_600_000L);
+			while (mockTimer.advanceClock(0L)) {
+			}
+			assertTrue(rest.await(5, TimeUnit.SECONDS));
+			assertEquals(3, fired.get());
+			assertEquals(0, mockTimer.size());
+		} finally {
+			mockTimer.shutdown();
+		}
+	}
+
+	// WHEEL_CURSOR 模式下, 以虚拟时间推进时每个任务都在其所在 bucket 到期后、且不早于 tickMs 执行
+	@Test
+	public void testWheelCursor() throws InterruptedException {
+		MockTime time = new MockTime();
+		List<Long> lateness = Collections.synchronizedList(new ArrayList<>());
+		// 到期任务在推进时钟的线程上执行, 读取到的虚拟时间即触发时刻
+		SystemTimer cursorTimer = new SystemTimer("wheel-cursor", 10L, 20, time.hiResClockMs(),
+				new CallerRunsExecutor(), time, SystemTimer.Scheduling.WHEEL_CURSOR);
+		try {
+			Random random = new Random(17);
+			int count = 2000;
+			CountDownLatch latch = new CountDownLatch(count);
+			for (int i = 0; i < count; i++) {
+				long delay = random.nextInt(600_000);
+				long deadline = time.hiResClockMs() + delay;
+				cursorTimer.add(new TimerTask() {
+					{
+						delayMs = delay;
+					}
+
+					@Override
+					public void run() {
+						lateness.add(time.hiResClockMs() - deadline);
+						latch.countDown();
+					}
+				});
+			}
+			assertTrue(cursorTimer.levels() >= 3);
+			for (int step = 0; step < 60_100; step++) {
+				time.sleep(10L);
+				cursorTimer.advanceClock(0L);
+			}
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(0, cursorTimer.size());
+			for (long late : lateness)
+				assertTrue("fired " + late + "ms from its deadline", late > -10L && late <= 10L);
+		} finally {
+			cursorTimer.shutdown();
+		}
+	}
+
+	// 等待中的 reaper 在更早的任务加入时被提前唤醒
+	@Test
+	public void testWheelCursorWakeup() throws Exception {
+		SystemTimer cursorTimer = new SystemTimer("wheel-cursor-wakeup", 10L, 20, Time.SYSTEM.hiResClockMs(),
+				Executors.newSingleThreadExecutor(), Time.SYSTEM, SystemTimer.Scheduling.WHEEL_CURSOR);
+		ExecutorService reaper = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch latch = new CountDownLatch(1);
+			cursorTimer.add(new TestTask(60_000L, new AtomicInteger(0), new CountDownLatch(1)));
+			Future<Boolean> advanced = reaper.submit(() -> cursorTimer.advanceClock(30_000L));
+			Thread.sleep(100L);
+			long start = System.currentTimeMillis();
+			cursorTimer.add(new TestTask(50L, new AtomicInteger(0), latch));
+			assertTrue(advanced.get(5, TimeUnit.SECONDS));
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertTrue("woken up by the earlier bucket", System.currentTimeMillis() - start < 5000L);
+			assertEquals(1, cursorTimer.size());
+		} finally {
+			reaper.shutdownNow();
+			cursorTimer.shutdown();
+		}
+	}
+
+	// 多个线程同时向同一个 bucket 插入并取消任务, 取消的任务不会执行, 计数保持准确
+	@Test
+	public void testConcurrentAddAndCancel() throws Exception {
+		MockTime time = new MockTime();
+		SystemTimer mockTimer = new SystemTimer("concurrent-add", 10L, 20, time.hiResClockMs(),
+				new CallerRunsExecutor(), time);
+		ExecutorService producers = Executors.newFixedThreadPool(4);
+		try {
+			int perThread = 5000;
+			AtomicInteger fired = new AtomicInteger(0);
+			CountDownLatch latch = new CountDownLatch(4 * perThread / 2);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				futures.add(producers.submit(() -> {
+					for (int i = 0; i < perThread; i++) {
+						TestTask task = new TestTask(100L, fired, latch);
+						mockTimer.add(task);
+						if (i % 2 == 0)
+							task.cancel();
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get(10, TimeUnit.SECONDS);
+			assertEquals(4 * perThread / 2, mockTimer.size());
+			assertEquals(mockTimer.size(), Arrays.stream(mockTimer.occupancy()).sum());
+
+			time.sleep(100L);
+			while (mockTimer.advanceClock(0L)) {
+			}
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(4 * perThread / 2, fired.get());
+			assertEquals(0, mockTimer.size());
+		} finally {
+			producers.shutdownNow();
+			mockTimer.shutdown();
+		}
+	}
+
+	// 到期后重新加入的任务复用同一个 entry; 仍在时间轮中的任务重新加入时分配新的 entry
+	@Test
+	public void testEntryReuse() throws InterruptedException {
+		MockTime time = new MockTime();
+		SystemTimer mockTimer = new SystemTimer("entry-reuse", 10L, 20, time.hiResClockMs(),
+				new CallerRunsExecutor(), time);
+		try {
+			AtomicInteger fired = new AtomicInteger(0);
+			TestTask task = new TestTask(100L, fired, new CountDownLatch(3));
+			mockTimer.add(task);
+			TimerTaskEntry first = task.getTimerTaskEntry();
+			time.sleep(100L);
+			assertTrue(mockTimer.advanceClock(0L));
+			assertEquals(1, fired.get());
+
+			mockTimer.add(task);
+			assertSame("expired entry is reused", first, task.getTimerTaskEntry());
+			assertEquals(time.hiResClockMs() + 100L, first.expirationMs());
+
+			mockTimer.add(task);
+			assertNotSame("pending entry is still linked", first, task.getTimerTaskEntry());
+			assertEquals(1, mockTimer.size());
+
+			time.sleep(3_600_000L);
+			while (mockTimer.advanceClock(0L)) {
+			}
+			assertEquals(2, fired.get());
+			assertEquals(0, mockTimer.size());
+		} finally {
+			mockTimer.shutdown();
+		}
+	}
+
+	// HandleTimer: 到期回调 id, 取消后以及到期后 handle 失效, 到期时刻与 SystemTimer 的精度相同
+	@Test
+	public void testHandleTimer() {
+		MockTime time = new MockTime();
+		long start = time.hiResClockMs();
+		long[] deadlines = new long[5000];
+		List<Long> lateness = new ArrayList<>();
+		HandleTimer handleTimer = new HandleTimer(10L, 20, 16, time,
+				id -> lateness.add(time.hiResClockMs() - deadlines[(int) id]));
+		Random random = new Random(17);
+		long[] handles = new long[deadlines.length];
+		for (int i = 0; i < deadlines.length; i++) {
+			long delay = random.nextInt(3_600_000);
+			deadlines[i] = start + delay;
+			handles[i] = handleTimer.schedule(delay, i);
+			assertNotEquals(0L, handles[i]);
+		}
+		assertEquals(deadlines.length, handleTimer.size());
+		assertTrue(handleTimer.levels() >= 4);
+		for (int i = 0; i < deadlines.length; i += 2)
+			assertTrue(handleTimer.cancel(handles[i]));
+		assertFalse("cancelled handle is stale", handleTimer.cancel(handles[0]));
+		assertEquals(deadlines.length / 2, handleTimer.size());
+
+		// 复用已取消的 slot, 旧的 handle 仍然无效
+		long reused = handleTimer.schedule(3_600_000L, 0);
+		assertNotEquals(handles[0], reused);
+		assertFalse(handleTimer.cancel(handles[0]));
+		assertTrue(handleTimer.cancel(reused));
+
+		while (time.hiResClockMs() - start <= 3_600_000L) {
+			time.sleep(10L);
+			handleTimer.advanceClock(0L);
+		}
+		assertEquals(deadlines.length / 2, lateness.size());
+		assertEquals(0, handleTimer.size());
+		for (long late : lateness)
+			assertTrue("fired " + late + "ms from its deadline", late > -10L && late <= 10L);
+		assertFalse("expired handle is stale", handleTimer.cancel(handles[1]));
+	}
+
+	// HandleTimer 跳过没有定时器的 tick: 1ms 的 tick 下时钟一次前进很多天, 到期的恰好是 deadline 落在已经过去的 tick 中的定时器
+	@Test
+	public void testHandleTimerSkipsEmptyTicks() {
+		MockTime time = new MockTime();
+		long start = time.hiResClockMs();
+		Set<Long> fired = new HashSet<>();
+		HandleTimer handleTimer = new HandleTimer(1L, 64, 16, time, fired::add);
+		// 只有一个很远的定时器
+		handleTimer.schedule(TimeUnit.DAYS.toMillis(30), -1L);
+		time.sleep(TimeUnit.DAYS.toMillis(10));
+		long begin = System.nanoTime();
+		assertFalse(handleTimer.advanceClock(0L));
+		assertTrue("advanced without stepping every tick", System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(1));
+		time.sleep(TimeUnit.DAYS.toMillis(20));
+		assertTrue(handleTimer.advanceClock(0L));
+		assertEquals(Collections.singleton(-1L), fired);
+
+		Random random = new Random(23);
+		long[] deadlines = new long[2000];
+		start = time.hiResClockMs();
+		for (int i = 0; i < deadlines.length; i++) {
+			long delay = (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(1));
+			deadlines[i] = start + delay;
+			handleTimer.schedule(delay, i);
+		}
+		fired.clear();
+		while (handleTimer.size() > 0) {
+			time.sleep(random.nextInt(10_000_000));
+			handleTimer.advanceClock(0L);
+			long now = time.hiResClockMs();
+			for (int i = 0; i < deadlines.length; i++)
+				assertEquals("timer " + i + " at " + now, deadlines[i] <= now, fired.contains((long) i));
+		}
+	}
+
+	// 没有超时的 advanceClock 可以被 wakeup 唤醒; 没有线程等待时的 wakeup 由下一次 advanceClock 消费
+	@Test
+	public void testWakeup() throws Exception {
+		ExecutorService reaper = Executors.newSingleThreadExecutor();
+		try {
+			for (SystemTimer.Scheduling scheduling : SystemTimer.Scheduling.values()) {
+				SystemTimer wakeupTimer = new SystemTimer("wakeup-" + scheduling, 10L, 20, Time.SYSTEM.hiResClockMs(),
+						Executors.newSingleThreadExecutor(), Time.SYSTEM, scheduling);
+				try {
+					wakeupTimer.add(new TestTask(60_000L, new AtomicInteger(0), new CountDownLatch(1)));
+					Future<Boolean> advanced = reaper.submit(() -> wakeupTimer.advanceClock(Long.MAX_VALUE));
+					Thread.sleep(100L);
+					assertFalse(advanced.isDone());
+					wakeupTimer.wakeup();
+					assertFalse(scheduling + " woken up", advanced.get(5, TimeUnit.SECONDS));
+
+					wakeupTimer.wakeup();
+					long start = System.currentTimeMillis();
+					assertFalse(wakeupTimer.advanceClock(Long.MAX_VALUE));
+					assertTrue(System.currentTimeMillis() - start < 5000L);
+					assertEquals(1, wakeupTimer.size());
+				} finally {
+					wakeupTimer.shutdown();
+				}
+			}
+		} finally {
+			reaper.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testCachedTime() throws InterruptedException {
+		try (CachedTime time = new CachedTime(1L)) {
+			long start = time.hiResClockMs();
+			assertTrue(start <= Time.SYSTEM.hiResClockMs());
+			Thread.sleep(50L);
+			assertTrue("ticker refreshes the cached clock", time.hiResClockMs() - start >= 20L);
+			assertTrue(time.hiResClockMs() <= Time.SYSTEM.hiResClockMs());
+
+			SystemTimer cachedTimer = new SystemTimer("cached-time", time);
+			try {
+				CountDownLatch latch = new CountDownLatch(1);
+				cachedTimer.add(new TestTask(20L, new AtomicInteger(0), latch));
+				long deadline = System.currentTimeMillis() + 5000;
+				while (latch.getCount() > 0 && System.currentTimeMillis() < deadline)
+					cachedTimer.advanceClock(200L);
+				assertTrue(latch.await(0, TimeUnit.MILLISECONDS));
+			} finally {
+				cachedTimer.shutdown();
+			}
+		}
+	}
+
+	// 以微秒为单位的时间轮: tick 为 100 微秒, 任务在其延迟所在的 tick 内到期, 不会被取整到毫秒
+	@Test
+	public void testSubMillisecondResolution() throws InterruptedException {
+		MockTime time = new MockTime(0L, 0L, 0L);
+		SystemTimer microTimer = new SystemTimer("micro", 100L, 20, time.hiResClock(TimeUnit.MICROSECONDS),
+				TimeUnit.MICROSECONDS, new CallerRunsExecutor(), time, SystemTimer.Scheduling.DELAY_QUEUE);
+		try {
+			List<Long> firedAtUs = Collections.synchronizedList(new ArrayList<>());
+			long[] delaysUs = {300L, 950L, 2_500L, 45_000L};
+			for (long delayUs : delaysUs) {
+				microTimer.add(new TimerTask() {
+					{
+						setDelay(delayUs, TimeUnit.MICROSECONDS);
+					}
+
+					@Override
+					public void run() {
+						firedAtUs.add(time.hiResClock(TimeUnit.MICROSECONDS));
+					}
+				});
+			}
+			// 毫秒精度向上取整, 混用毫秒的时间轮时不会提前到期
+			assertEquals(1L, new TestTask(1L, new AtomicInteger(0), new CountDownLatch(1)).delay(TimeUnit.MILLISECONDS));
+
+			time.advanceNanos(TimeUnit.MICROSECONDS.toNanos(200L));
+			assertFalse(microTimer.advanceClock(0L));
+			assertTrue(firedAtUs.isEmpty());
+			while (time.hiResClock(TimeUnit.MICROSECONDS) < 50_000L) {
+				time.advanceNanos(TimeUnit.MICROSECONDS.toNanos(50L));
+				while (microTimer.advanceClock(0L)) {
+				}
+			}
+			assertEquals(delaysUs.length, firedAtUs.size());
+			for (int i = 0; i < delaysUs.length; i++) {
+				long firedUs = firedAtUs.get(i);
+				assertTrue("fired at " + firedUs + "us for a delay of " + delaysUs[i] + "us",
+						firedUs > delaysUs[i] - 100L && firedUs <= delaysUs[i] + 100L);
+			}
+			assertEquals(0, microTimer.size());
+		} finally {
+			microTimer.shutdown();
+		}
+	}
+
+	// 延迟集中在 2 ~ 4 秒时, 默认 200ms 的第一层使所有任务都要 cascade; 调整后第一层覆盖这些延迟, 任务不再 cascade
+	@Test
+	public void testGeometryTuner() throws InterruptedException {
+		MockTime time = new MockTime();
+		SystemTimer tunedTimer = new SystemTimer("tuned", 10L, 20, time.hiResClockMs(), TimeUnit.MILLISECONDS,
+				new CallerRunsExecutor(), time, SystemTimer.Scheduling.DELAY_QUEUE, new GeometryTuner(10L));
+		try {
+			Random random = new Random(17);
+			int perWindow = 150_000;
+			AtomicInteger fired = new AtomicInteger(0);
+			CountDownLatch latch = new CountDownLatch(2 * perWindow + 2);
+			// 两个采样窗口的推荐值一致后才重建时间轮
+			for (int window = 0; window < 2; window++) {
+				for (int i = 0; i < perWindow; i++)
+					tunedTimer.add(new TestTask(2000L + random.nextInt(2000), fired, latch));
+				tunedTimer.add(new TestTask(10L, fired, latch));
+				time.sleep(10L);
+				assertTrue(tunedTimer.advanceClock(0L));
+			}
+			assertEquals(1L, tunedTimer.metrics().getGeometryChanges());
+			assertEquals(10L, tunedTimer.metrics().getTick());
+			assertEquals(512, tunedTimer.metrics().getWheelSize());
+			assertTrue(tunedTimer.metrics().getRecommendedGeometry().contains("wheelSize:512"));
+			assertEquals(2 * perWindow, tunedTimer.size());
+			assertEquals(2, fired.get());
+
+			long cascaded = LongStream.of(tunedTimer.metrics().getCascadedEntries()).sum();
+			time.sleep(4000L);
+			while (tunedTimer.advanceClock(0L)) {
+			}
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(0, tunedTimer.size());
+			assertEquals(cascaded, LongStream.of(tunedTimer.metrics().getCascadedEntries()).sum());
+		} finally {
+			tunedTimer.shutdown();
+		}
+	}
+
+	// 大量 BULK 任务与 CRITICAL 任务同时到期: CRITICAL 不排在整批 BULK 之后, 两者按 8 : 1 的权重交替执行
+	@Test
+	public void testPriorityLanes() throws Exception {
+		MockTime time = new MockTime();
+		LaneExecutor lanes = new LaneExecutor("lanes", 1);
+		SystemTimer laneTimer = new SystemTimer("lanes", 10L, 20, time.hiResClockMs(), lanes, time);
+		CountDownLatch gate = new CountDownLatch(1);
+		try {
+			// 先让唯一的 worker 阻塞, 到期的任务都在 lane 中排队
+			CountDownLatch blocked = new CountDownLatch(1);
+			laneTimer.add(new TimerTask() {
+				{
+					delayMs = 10L;
+				}
+
+				@Override
+				public void run() {
+					blocked.countDown();
+					try {
+						gate.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			time.sleep(10L);
+			assertTrue(laneTimer.advanceClock(0L));
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+			List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+			CountDownLatch done = new CountDownLatch(200);
+			for (int i = 0; i < 100; i++)
+				laneTimer.add(new PriorityTask(Priority.BULK, 50L, order, done));
+			for (int i = 0; i < 100; i++)
+				laneTimer.add(new PriorityTask(Priority.CRITICAL, 50L, order, done));
+			time.sleep(50L);
+			assertTrue(laneTimer.advanceClock(0L));
+			assertEquals(100, lanes.queued(Priority.CRITICAL));
+			assertEquals(100, lanes.queued(Priority.BULK));
+			assertEquals(200, laneTimer.expirationQueueDepth());
+
+			gate.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(Priority.CRITICAL, order.get(0));
+			assertEquals(1, Collections.frequency(order.subList(0, 9), Priority.BULK));
+			assertEquals(0, lanes.queued());
+		} finally {
+			gate.countDown();
+			laneTimer.shutdown();
+		}
+		assertTrue(lanes.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	// execute 与 shutdown 并发: 没有被拒绝的任务在 worker 退出前都会执行, 不会留在 lane 中
+	@Test
+	public void testLaneExecutorShutdownRace() throws Exception {
+		for (int round = 0; round < 200; round++) {
+			LaneExecutor lanes = new LaneExecutor("race", 1);
+			AtomicInteger ran = new AtomicInteger();
+			AtomicInteger accepted = new AtomicInteger();
+			Thread submitter = new Thread(() -> {
+				try {
+					while (true) {
+						lanes.execute(ran::incrementAndGet);
+						accepted.incrementAndGet();
+					}
+				} catch (RejectedExecutionException e) {
+					// shutdown 之后被拒绝
+				}
+			});
+			submitter.start();
+			Thread.yield();
+			lanes.shutdown();
+			submitter.join(5000L);
+			assertTrue(lanes.awaitTermination(5, TimeUnit.SECONDS));
+			assertEquals(accepted.get(), ran.get());
+			assertEquals(0, lanes.queued());
+		}
+	}
+
+	// 重启后恢复既没有执行也没有取消的任务, 截止时间不变; 写满的 segment 在后台合并
+	@Test
+	public void testDurableTimer() throws Exception {
+		File dir = Files.createTempDirectory("durable-timer").toFile();
+		MockTime time = new MockTime();
+		Set<Long> fired = ConcurrentHashMap.newKeySet();
+		DurableTimer.Recovery recovery = (id, payload) -> {
+			assertEquals("timer-" + id, new String(payload, StandardCharsets.UTF_8));
+			return new DurableTask(id, payload, 0L, fired);
+		};
+		// 每个 segment 1024 字节, 约 30 个 SCHEDULE
+		DurableTimer durable = new DurableTimer(new SystemTimer("durable", time), dir, recovery, 1024, 1L, true, 2, time);
+		try {
+			assertEquals(0, durable.recovered());
+			List<DurableTask> tasks = new ArrayList<>();
+			for (int i = 0; i < 100; i++)
+				tasks.add(new DurableTask(i, ("timer-" + i).getBytes(StandardCharsets.UTF_8), (i + 1) * 100L, fired));
+			durable.addAll(tasks.subList(0, 50));
+			for (DurableTask task : tasks.subList(50, 100))
+				durable.add(task);
+			for (int i = 10; i < 20; i++)
+				tasks.get(i).cancel();
+			time.sleep(1000L);
+			while (durable.advanceClock(0L)) {
+			}
+			// 100 个 SCHEDULE, 10 个 CANCEL, 10 个 COMPLETE
+			waitUntil(() -> durable.appends() == 120);
+			assertEquals(10, fired.size());
+			waitUntil(() -> durable.compactions() > 0);
+		} finally {
+			durable.shutdown();
+		}
+
+		time.sleep(500L);
+		DurableTimer restarted = new DurableTimer(new SystemTimer("durable-restarted", time), dir, recovery, 1024, 1L,
+				true, 2, time);
+		try {
+			assertEquals(80, restarted.recovered());
+			assertEquals(80, restarted.size());
+			// timer 20 的截止时间是 2100 ms, 停机的 500 ms 也计算在内
+			time.sleep(600L);
+			while (restarted.advanceClock(0L)) {
+			}
+			waitUntil(() -> fired.contains(20L));
+			assertEquals(11, fired.size());
+
+			time.sleep(10_000L);
+			while (restarted.advanceClock(0L)) {
+			}
+			waitUntil(() -> fired.size() == 90);
+			for (long id = 10; id < 20; id++)
+				assertFalse("cancelled timer " + id + " fired", fired.contains(id));
+			waitUntil(() -> restarted.appends() == 80);
+		} finally {
+			restarted.shutdown();
+		}
+
+		DurableTimer empty = new DurableTimer(new SystemTimer("durable-empty", time), dir, recovery, 1024, 1L,
+				true, 2, time);
+		empty.shutdown();
+		assertEquals(0, empty.recovered());
+		for (File file : dir.listFiles())
+			Files.delete(file.toPath());
+		Files.delete(dir.toPath());
+	}
+
+	// 崩溃时写了一半的记录头中 length 是垃圾值: 恢复在此停止, 之前的记录照常恢复
+	@Test
+	public void testDurableTimerTornHeader() throws Exception {
+		File dir = Files.createTempDirectory("durable-timer-torn").toFile();
+		MockTime time = new MockTime();
+		Set<Long> fired = ConcurrentHashMap.newKeySet();
+		DurableTimer.Recovery recovery = (id, payload) -> new DurableTask(id, payload, 0L, fired);
+		DurableTimer durable = new DurableTimer(new SystemTimer("durable-torn", time), dir, recovery, 1024, 1L, true, 2, time);
+		try {
+			for (long id = 0; id < 3; id++)
+				durable.add(new DurableTask(id, new byte[8], 60_000L, fired));
+		} finally {
+			durable.shutdown();
+		}
+
+		// 一个刚 roll 出来的 segment, 第一个记录只写了记录头
+		int[] lengths = {Integer.MAX_VALUE - 10, Integer.MAX_VALUE, 1 << 20};
+		for (int i = 0; i < lengths.length; i++) {
+			ByteBuffer header = ByteBuffer.allocate(25);
+			header.putInt(0).put((byte) 1).putLong(100L + i).putLong(0L).putInt(lengths[i]);
+			Files.write(new File(dir, String.format("%020d.log", 1_000_000L + i)).toPath(), header.array());
+		}
+		DurableTimer restarted = new DurableTimer(new SystemTimer("durable-torn-restarted", time), dir, recovery,
+				1024, 1L, true, 2, time);
+		try {
+			assertEquals(3, restarted.recovered());
+		} finally {
+			restarted.shutdown();
+		}
+		for (File file : dir.listFiles())
+			Files.delete(file.toPath());
+		Files.delete(dir.toPath());
+	}
+
+	private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (!condition.getAsBoolean()) {
+			assertTrue("condition not met in 5 s", System.currentTimeMillis() < deadline);
+			Thread.sleep(5L);
+		}
+	}
+
+	static class DurableTask extends DurableTimerTask {
+
+		private final Set<Long> fired;
+
+		DurableTask(long id, byte[] payload, long delayMs, Set<Long> fired) {
+			super(id, payload, delayMs);
+			this.fired = fired;
+		}
+
+		@Override
+		protected void execute() {
+			fired.add(id());
+		}
+	}
+
+	static class PriorityTask extends TimerTask {
+
+		private final List<Priority> order;
+		private final CountDownLatch done;
+
+		PriorityTask(Priority priority, long delayMs, List<Priority> order, CountDownLatch done) {
+			this.priority = priority;
+			this.delayMs = delayMs;
+			this.order = order;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			order.add(priority);
+			done.countDown();
+		}
+	}
+
+	static class CallerRunsExecutor extends AbstractExecutorService {
+
+		private volatile boolean shutdown = false;
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return new ArrayList<>();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return shutdown;
+		}
+	}
+
+	static class TestTask extends TimerTask {
+
+		private final AtomicInteger fired;
+		private final CountDownLatch latch;
+
+		TestTask(long delayMs, AtomicInteger fired, CountDownLatch latch) {
+			this.delayMs = delayMs;
+			this.fired = fired;
+			this.latch = latch;
+		}
+
+		@Override
+		public void run() {
+			fired.incrementAndGet();
+			latch.countDown();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.cc.common.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: chenchong
+ * Date: 2026/10/16
+ * description:	手动推进的时钟, 用于测试以及以虚拟时间驱动时间轮
+ */
+
+/**
+ * A clock that only moves when told to. sleep() advances the clock instead of blocking;
+ * with a positive autoTickMs every read of the clock advances it by that amount.
+ */
+public class MockTime implements Time {
+
+	private final long autoTickMs;
+
+	private final AtomicLong timeMs;
+	private final AtomicLong highResTimeNs;
+
+	public MockTime() {
+		this(0);
+	}
+
+	public MockTime(long autoTickMs) {
+		this(autoTickMs, System.currentTimeMillis(), System.nanoTime());
+	}
+
+	public MockTime(long autoTickMs, long currentTimeMs, long currentHighResTimeNs) {
+		this.autoTickMs = autoTickMs;
+		this.timeMs = new AtomicLong(currentTimeMs);
+		this.highResTimeNs = new AtomicLong(currentHighResTimeNs);
+	}
+
+	@Override
+	public long milliseconds() {
+		maybeSleep(autoTickMs);
+		return timeMs.get();
+	}
+
+	@Override
+	public long nanoseconds() {
+		maybeSleep(autoTickMs);
+		return highResTimeNs.get();
+	}
+
+	private void maybeSleep(long ms) {
+		if (ms != 0)
+			sleep(ms);
+	}
+
+	@Override
+	public void sleep(long ms) {
+		timeMs.addAndGet(ms);
+		highResTimeNs.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+	}
+
+	public void advance(long ms) {
+		sleep(ms);
+	}
+
+	// 只推进高精度时钟, 用于亚毫秒精度的测试
+	public void advanceNanos(long ns) {
+		highResTimeNs.addAndGet(ns);
+	}
+}